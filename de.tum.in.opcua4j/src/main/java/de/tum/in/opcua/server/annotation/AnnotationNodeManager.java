@@ -2,6 +2,7 @@ package de.tum.in.opcua.server.annotation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -9,23 +10,31 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
 import org.opcfoundation.ua.builtintypes.LocalizedText;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.StatusCode;
 import org.opcfoundation.ua.builtintypes.UnsignedByte;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
 import org.opcfoundation.ua.core.IdType;
 import org.opcfoundation.ua.core.Identifiers;
 import org.opcfoundation.ua.core.Node;
 import org.opcfoundation.ua.core.ObjectNode;
+import org.opcfoundation.ua.core.ReadValueId;
 import org.opcfoundation.ua.core.ReferenceNode;
+import org.opcfoundation.ua.core.StatusCodes;
 
 import de.tum.in.opcua.server.annotation.history.AnnotationHistoryManager;
 import de.tum.in.opcua.server.core.UAServerException;
 import de.tum.in.opcua.server.core.addressspace.AddressSpace;
+import de.tum.in.opcua.server.core.addressspace.AttributeReader;
 import de.tum.in.opcua.server.core.addressspace.INodeManager;
+import de.tum.in.opcua.server.core.addressspace.IReferenceIndex;
+import de.tum.in.opcua.server.core.addressspace.IValueChangeListener;
 import de.tum.in.opcua.server.core.addressspace.NodeFactory;
 import de.tum.in.opcua.server.core.history.IHistoryManager;
 import de.tum.in.opcua.server.core.util.ArrayUtils;
@@ -43,7 +52,8 @@ import de.tum.in.opcua.server.core.util.NodeUtils;
  * @author harald
  *
  */
-public class AnnotationNodeManager implements INodeManager {
+public class AnnotationNodeManager implements INodeManager,
+		MonitorItemManagable, IReferenceIndex {
 
 	private static final Logger LOG = Logger
 			.getLogger(AnnotationNodeManager.class);
@@ -357,42 +367,9 @@ public class AnnotationNodeManager implements INodeManager {
 			node = buildNode(obj);
 		} else {
 			final String fieldName = idParts[2];
-			Object oValue = null;
-			Class<?> type = null;
-			try {
-				// we check the datatype of the object which should be returned
-				type = nodeMapping.getReferencedDataType(fieldName);
-				/*
-				 * read the value of the field. if its a builtin-type, the
-				 * oValue is the value we are looking for. if not, we introspect
-				 * the object and try to find the field annotated with @value
-				 */
-				oValue = nodeMapping.readProperty(fieldName, obj);
-
-				if (!NodeUtils.isBuiltinType(type)) {
-					LOG.info("no builtintype: " + type.getName());
-					// not builtin type, so we have to find the @value field of
-					// the read object and read that's value
-					final NodeMapping another = getNodeMapping(type.getName(),
-							oValue);
-
-					// set the correct value and type
-					if (oValue != null) {
-						oValue = another.readValueField(oValue);
-					}
-
-					type = another.getValueField().getType();
-
-					LOG.debug("read value from annotated value field: "
-							+ oValue);
-				} else {
-					LOG.debug("read builtin type: " + oValue);
-				}
-
-			} catch (final Exception e) {
-				LOG.error(e.getMessage(), e);
-				// TODO throw server exception here
-			}
+			final FieldValue field = readField(nodeMapping, obj, fieldName);
+			final Object oValue = field.value;
+			final Class<?> type = field.type;
 
 			final NodeId dataType = NodeFactory.getNodeIdByDataType(type);
 			final String fieldId = nodeName + ID_SEPARATOR + beanId
@@ -412,6 +389,57 @@ public class AnnotationNodeManager implements INodeManager {
 		return node;
 	}
 
+	/**
+	 * reads the value of the field of the object. if the field is no builtin
+	 * type, the value of the field annotated with @value of the referenced
+	 * object is read.
+	 * 
+	 * @param nodeMapping
+	 *            mapping of the class of the object
+	 * @param obj
+	 * @param fieldName
+	 * @return the value and its type, as far as they could be read
+	 */
+	private FieldValue readField(NodeMapping nodeMapping, Object obj,
+			String fieldName) {
+		final FieldValue field = new FieldValue();
+		try {
+			// we check the datatype of the object which should be returned
+			field.type = nodeMapping.getReferencedDataType(fieldName);
+			/*
+			 * read the value of the field. if its a builtin-type, the value is
+			 * the value we are looking for. if not, we introspect the object
+			 * and try to find the field annotated with @value
+			 */
+			field.value = nodeMapping.readProperty(fieldName, obj);
+
+			if (!NodeUtils.isBuiltinType(field.type)) {
+				LOG.info("no builtintype: " + field.type.getName());
+				// not builtin type, so we have to find the @value field of
+				// the read object and read that's value
+				final NodeMapping another = getNodeMapping(
+						field.type.getName(), field.value);
+
+				// set the correct value and type
+				if (field.value != null) {
+					field.value = another.readValueField(field.value);
+				}
+
+				field.type = another.getValueField().getType();
+
+				LOG.debug("read value from annotated value field: "
+						+ field.value);
+			} else {
+				LOG.debug("read builtin type: " + field.value);
+			}
+
+		} catch (final Exception e) {
+			LOG.error(e.getMessage(), e);
+			field.failed = true;
+		}
+		return field;
+	}
+
 	@Override
 	public ReferenceNode[] getReferences(NodeId nodeId)
 			throws UAServerException {
@@ -431,6 +459,15 @@ public class AnnotationNodeManager implements INodeManager {
 		return ArrayUtils.toArray(refs, ReferenceNode.class);
 	}
 
+	/**
+	 * we only have references for our own index, see
+	 * {@link #getReferences(NodeId)}
+	 */
+	@Override
+	public boolean hasReferences(NodeId nodeId) {
+		return nodeId.getNamespaceIndex() == nsIndex;
+	}
+
 	private List<ReferenceNode> getTopLevelReferences() {
 		final List<ReferenceNode> topLevelRefs = new ArrayList<ReferenceNode>();
 
@@ -589,8 +626,164 @@ public class AnnotationNodeManager implements INodeManager {
 
 	@Override
 	public DataValue readNodeAttribute(NodeId nodeId, UnsignedInteger attrId) {
-		// TODO Auto-generated method stub
-		return null;
+		return read(Collections.singletonList(new ReadValueId(nodeId, attrId,
+				null, null)))[0];
+	}
+
+	/**
+	 * the value and datatype of fields ("NodeName:beanId:field") are read
+	 * straight from the objects of the {@link IAnnotatedNodeSource}, without
+	 * building a node for every field. every object is fetched only once per
+	 * call. all other attributes are read from the nodes.
+	 */
+	@Override
+	public DataValue[] read(List<ReadValueId> nodesToRead) {
+		final DataValue[] values = new DataValue[nodesToRead.size()];
+
+		// attributes which have to be read from a node
+		final List<ReadValueId> nodeReads = new ArrayList<ReadValueId>();
+		final List<Integer> nodeReadPositions = new ArrayList<Integer>();
+
+		// objects fetched in this call, by "NodeName:beanId"
+		final Map<String, Object> objects = new HashMap<String, Object>();
+
+		for (int i = 0; i < values.length; i++) {
+			final ReadValueId readId = nodesToRead.get(i);
+			final UnsignedInteger attrId = readId.getAttributeId();
+			final String[] idParts = getFieldIdParts(readId.getNodeId());
+			if (idParts != null
+					&& (Attributes.Value.equals(attrId) || Attributes.DataType
+							.equals(attrId))) {
+				values[i] = readFieldAttribute(idParts, attrId, objects);
+			} else {
+				nodeReads.add(readId);
+				nodeReadPositions.add(i);
+			}
+		}
+
+		if (!nodeReads.isEmpty()) {
+			final DataValue[] nodeValues = AttributeReader.read(this,
+					nodeReads);
+			for (int j = 0; j < nodeValues.length; j++) {
+				values[nodeReadPositions.get(j)] = nodeValues[j];
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * @param nodeId
+	 * @return nodeName, beanId and field name if the node is a field of an
+	 *         object of ours, null otherwise
+	 */
+	private String[] getFieldIdParts(NodeId nodeId) {
+		if (nodeId.getNamespaceIndex() != nsIndex
+				|| !(nodeId.getValue() instanceof String)
+				|| nodeId.equals(myRootId)) {
+			return null;
+		}
+		final String id = (String) nodeId.getValue();
+		if (id.contains("Type")) {
+			// type nodes, see findNode
+			return null;
+		}
+		final String[] idParts = id.split(ID_SEPARATOR);
+		return idParts.length == 3 ? idParts : null;
+	}
+
+	private DataValue readFieldAttribute(String[] idParts,
+			UnsignedInteger attrId, Map<String, Object> objects) {
+		final String nodeName = idParts[0];
+		final String beanId = idParts[1];
+		final NodeMapping nodeMapping = getNodeMapping(nodeName);
+		if (nodeMapping == null) {
+			return AttributeReader.errorValue(StatusCodes.Bad_NodeIdUnknown);
+		}
+
+		final String objectId = nodeName + ID_SEPARATOR + beanId;
+		Object obj = objects.get(objectId);
+		if (obj == null && !objects.containsKey(objectId)) {
+			obj = annoNodeSource.getObjectById(nodeMapping.getClazz(), beanId);
+			objects.put(objectId, obj);
+		}
+		if (obj == null) {
+			// the source does not know the bean (anymore)
+			return AttributeReader.errorValue(StatusCodes.Bad_NodeIdUnknown);
+		}
+
+		final FieldValue field = readField(nodeMapping, obj, idParts[2]);
+		if (field.failed) {
+			return AttributeReader.errorValue(StatusCodes.Bad_InternalError);
+		}
+
+		final DataValue val = new DataValue();
+		if (Attributes.Value.equals(attrId)) {
+			val.setValue(new Variant(field.value));
+		} else {
+			val.setValue(new Variant(NodeFactory
+					.getNodeIdByDataType(field.type)));
+		}
+		val.setStatusCode(StatusCode.GOOD);
+		val.setServerTimestamp(new DateTime());
+		return val;
+	}
+
+	/**
+	 * changes can only be pushed for the value of fields ("NodeName:beanId:
+	 * field") and only if the source implements {@link IMonitoredNodeSource}.
+	 */
+	@Override
+	public boolean startMonitoring(NodeId nodeId, UnsignedInteger attrId,
+			IValueChangeListener listener) {
+		final AnnotatedValueListener valueListener = buildValueListener(
+				nodeId, attrId, listener);
+		if (valueListener == null) {
+			return false;
+		}
+		return ((IMonitoredNodeSource) annoNodeSource).startMonitoring(
+				valueListener.nodeMapping.getClazz(), valueListener.beanId,
+				valueListener.fieldName, valueListener);
+	}
+
+	@Override
+	public void stopMonitoring(NodeId nodeId, UnsignedInteger attrId,
+			IValueChangeListener listener) {
+		final AnnotatedValueListener valueListener = buildValueListener(
+				nodeId, attrId, listener);
+		if (valueListener != null) {
+			((IMonitoredNodeSource) annoNodeSource).stopMonitoring(
+					valueListener.nodeMapping.getClazz(),
+					valueListener.beanId, valueListener.fieldName,
+					valueListener);
+		}
+	}
+
+	/**
+	 * returns null if changes of the attribute can not be pushed
+	 */
+	private AnnotatedValueListener buildValueListener(NodeId nodeId,
+			UnsignedInteger attrId, IValueChangeListener listener) {
+		if (!(annoNodeSource instanceof IMonitoredNodeSource)
+				|| !Attributes.Value.equals(attrId)
+				|| nodeId.getNamespaceIndex() != nsIndex
+				|| !(nodeId.getValue() instanceof String)) {
+			return null;
+		}
+
+		final String[] idParts = ((String) nodeId.getValue())
+				.split(ID_SEPARATOR);
+		if (idParts.length != 3) {
+			return null;
+		}
+
+		final NodeMapping nodeMapping = getNodeMapping(idParts[0]);
+		if (nodeMapping == null) {
+			return null;
+		}
+
+		return new AnnotatedValueListener(nodeId, attrId, listener,
+				nodeMapping, idParts[1], idParts[2]);
 	}
 
 	@Override
@@ -691,4 +884,81 @@ public class AnnotationNodeManager implements INodeManager {
 		return annoHistManager;
 	}
 
+
+	/**
+	 * translates the field values pushed by the {@link IMonitoredNodeSource}
+	 * to DataValues for the {@link IValueChangeListener}. two instances are
+	 * equal if they are built for the same node and listener, so the source
+	 * can find the instance given to startMonitoring when stopMonitoring is
+	 * called.
+	 */
+	private class AnnotatedValueListener implements IAnnotatedValueListener {
+
+		private final NodeId nodeId;
+		private final UnsignedInteger attrId;
+		private final IValueChangeListener listener;
+		private final NodeMapping nodeMapping;
+		private final String beanId;
+		private final String fieldName;
+
+		AnnotatedValueListener(NodeId nodeId, UnsignedInteger attrId,
+				IValueChangeListener listener, NodeMapping nodeMapping,
+				String beanId, String fieldName) {
+			this.nodeId = nodeId;
+			this.attrId = attrId;
+			this.listener = listener;
+			this.nodeMapping = nodeMapping;
+			this.beanId = beanId;
+			this.fieldName = fieldName;
+		}
+
+		@Override
+		public void valueChanged(Object value) {
+			final DataValue dataValue = new DataValue();
+			try {
+				Object oValue = value;
+				if (oValue != null
+						&& !NodeUtils.isBuiltinType(oValue.getClass())) {
+					// same as in findNode: custom objects are represented by
+					// their @Value field
+					final NodeMapping another = getNodeMapping(oValue
+							.getClass().getName(), oValue);
+					oValue = another.readValueField(oValue);
+				}
+				dataValue.setValue(new Variant(oValue));
+				dataValue.setStatusCode(StatusCode.GOOD);
+			} catch (final Exception e) {
+				LOG.error(e.getMessage(), e);
+				dataValue.setStatusCode(StatusCode.BAD);
+			}
+			dataValue.setSourceTimestamp(new DateTime());
+
+			listener.valueChanged(nodeId, attrId, dataValue);
+		}
+
+		@Override
+		public int hashCode() {
+			return nodeId.hashCode() * 31 + listener.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof AnnotatedValueListener)) {
+				return false;
+			}
+			final AnnotatedValueListener other = (AnnotatedValueListener) obj;
+			return nodeId.equals(other.nodeId)
+					&& listener.equals(other.listener);
+		}
+	}
+
+	/**
+	 * value and type of a field read by
+	 * {@link AnnotationNodeManager#readField(NodeMapping, Object, String)}
+	 */
+	private static class FieldValue {
+		private Object value;
+		private Class<?> type;
+		private boolean failed;
+	}
 }
@@ -0,0 +1,18 @@
+package de.tum.in.opcua.server.annotation;
+
+/**
+ * gets the new values of a monitored field from an
+ * {@link IMonitoredNodeSource}.
+ * 
+ */
+public interface IAnnotatedValueListener {
+
+	/**
+	 * @param value
+	 *            the new value of the field, the same the field itself would
+	 *            hold. custom objects with a {@link Value} annotated field are
+	 *            allowed.
+	 */
+	public void valueChanged(Object value);
+
+}
@@ -0,0 +1,42 @@
+package de.tum.in.opcua.server.annotation;
+
+/**
+ * can be implemented in addition to {@link IAnnotatedNodeSource} by sources
+ * which know when the values of their objects change. the
+ * {@link AnnotationNodeManager} then does not sample monitored fields, but the
+ * source pushes every new value to the given listener.
+ * 
+ */
+public interface IMonitoredNodeSource {
+
+	/**
+	 * starts notifying the listener about changes of a field of an object.
+	 * 
+	 * @param clazz
+	 *            class of the object
+	 * @param id
+	 *            identifier of the object
+	 * @param fieldName
+	 *            name of the annotated field
+	 * @param listener
+	 *            has to be called with the new field value on every change
+	 * @return false if changes of this field can not be pushed, the field is
+	 *         sampled then.
+	 */
+	public boolean startMonitoring(Class<?> clazz, String id,
+			String fieldName, IAnnotatedValueListener listener);
+
+	/**
+	 * stops notifying the listener. the given listener equals the one given to
+	 * {@link #startMonitoring(Class, String, String, IAnnotatedValueListener)}
+	 * .
+	 * 
+	 * @param clazz
+	 * @param id
+	 * @param fieldName
+	 * @param listener
+	 */
+	public void stopMonitoring(Class<?> clazz, String id, String fieldName,
+			IAnnotatedValueListener listener);
+
+}
@@ -1,14 +1,47 @@
 package de.tum.in.opcua.server.annotation;
 
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+
 import de.tum.in.opcua.server.core.addressspace.INodeManager;
+import de.tum.in.opcua.server.core.addressspace.IValueChangeListener;
 
 /**
  * has to be implemented if {@link INodeManager}s want to support monitored
  * items and hence notify clients about value changes in the addressspace
  * 
+ * instead of being sampled periodically, the node manager pushes every change
+ * of a monitored attribute to the given {@link IValueChangeListener}. this
+ * is meant for sources which know when their data changes anyway.
+ * 
  * @author harald
  *
  */
 public interface MonitorItemManagable {
 
+	/**
+	 * starts pushing changes of the attribute of the node to the listener.
+	 * returns false if the node manager can not push changes for this
+	 * attribute, the attribute is sampled then.
+	 * 
+	 * @param nodeId
+	 * @param attrId
+	 * @param listener
+	 * @return true if changes are pushed to the listener
+	 */
+	public boolean startMonitoring(NodeId nodeId, UnsignedInteger attrId,
+			IValueChangeListener listener);
+
+	/**
+	 * stops pushing changes, which were started by
+	 * {@link #startMonitoring(NodeId, UnsignedInteger, IValueChangeListener)}
+	 * , to the listener.
+	 * 
+	 * @param nodeId
+	 * @param attrId
+	 * @param listener
+	 */
+	public void stopMonitoring(NodeId nodeId, UnsignedInteger attrId,
+			IValueChangeListener listener);
+
 }
@@ -0,0 +1,62 @@
+package de.tum.in.opcua.server.core;
+
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+/**
+ * keeps the {@link Session}s of a server. {@link SessionManager} holds them in
+ * memory and is used by default, {@link SharedSessionManager} additionally
+ * shares them with other server instances on the same host, so a client can
+ * continue its session on another instance behind a load balancer.
+ *
+ * implementations are called concurrently from all service handlers.
+ *
+ */
+public interface ISessionManager {
+
+	/**
+	 * creates a new session, which is not managed until it is added with
+	 * {@link #addSession(Session)}
+	 *
+	 * @return
+	 */
+	public Session createSession();
+
+	/**
+	 * starts managing the session. sessionId, authentication token and
+	 * timeout have to be set.
+	 *
+	 * @param s
+	 */
+	public void addSession(Session s);
+
+	/**
+	 * returns the session and resets its timeout. has to be called for every
+	 * request of the client.
+	 *
+	 * @param authToken
+	 * @return the session or null if there is no session for the token
+	 */
+	public Session getSession(NodeId authToken);
+
+	/**
+	 * @param sessionId
+	 * @return the session or null
+	 */
+	public Session getSessionById(NodeId sessionId);
+
+	/**
+	 * removes the session and frees its resources
+	 *
+	 * @param authToken
+	 * @param deleteSubscriptions
+	 *            true if the subscriptions of the session are deleted
+	 *            immediately
+	 * @return false if there was no session for the token
+	 */
+	public boolean closeSession(NodeId authToken, boolean deleteSubscriptions);
+
+	/**
+	 * releases all resources. has to be called when the server is stopped.
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,445 @@
+package de.tum.in.opcua.server.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+
+/**
+ * stores the shareable part of {@link Session}s in a memory mapped file, so
+ * several JVMs on the same host see the same sessions. the file consists of a
+ * header and a fixed number of fixed size slots, one per session:
+ *
+ * <pre>
+ *   0 int     state (FREE, USED)
+ *   8 long    hash of the authentication token
+ *  16 long    last activity (ms)
+ *  24 double  timeout (ms), NaN if none
+ *  32 long    max response message size, -1 if none
+ *  40 string  authentication token
+ * 168 string  session id
+ * 296 string  session name
+ * 488 string  locale
+ * </pre>
+ *
+ * strings are stored as UTF-8 with a leading short for the length. the secure
+ * channel, nonces, certificates and subscriptions of a session are not
+ * shared; a client continuing its session on another instance has to
+ * activate it again on its new secure channel.
+ *
+ * allocating, freeing and touching slots is serialized between JVMs by a lock
+ * on the file. a session is touched at most once per second, so requests
+ * rarely take the lock. lookups verify the slot after reading it.
+ *
+ * looking up an unknown token scans all slots, so tokens which were not found
+ * are remembered and not looked up again. tokens are random and a session is
+ * stored before its token is sent to the client, so a missed token does not
+ * show up later.
+ *
+ */
+public class MappedSessionStore {
+
+	private static final Logger LOG = Logger
+			.getLogger(MappedSessionStore.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x55415353; // "UASS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 512;
+
+	private static final int FREE = 0;
+	private static final int USED = 1;
+
+	private static final int STATE = 0;
+	private static final int TOKEN_HASH = 8;
+	private static final int LAST_ACTIVITY = 16;
+	private static final int TIMEOUT = 24;
+	private static final int MAX_RESP_MSG_SIZE = 32;
+	private static final int AUTH_TOKEN = 40;
+	private static final int SESSION_ID = 168;
+	private static final int SESSION_NAME = 296;
+	private static final int LOCALE = 488;
+
+	private static final int ID_LENGTH = SESSION_ID - AUTH_TOKEN;
+	private static final int NAME_LENGTH = LOCALE - SESSION_NAME;
+	private static final int LOCALE_LENGTH = SLOT_SIZE - LOCALE;
+
+	/**
+	 * time (in milliseconds) by which the last activity has to advance before
+	 * it is written again
+	 */
+	private static final long TOUCH_RESOLUTION = 1000;
+
+	/**
+	 * number of unknown tokens remembered
+	 */
+	private static final int MAX_MISSED_TOKENS = 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slotCount;
+
+	/**
+	 * slots of the sessions this JVM wrote or read, by authentication token
+	 */
+	private final ConcurrentMap<NodeId, Integer> slots;
+
+	/**
+	 * tokens for which no session was found, the oldest are forgotten first.
+	 * guarded by its own lock.
+	 */
+	private final Map<NodeId, Boolean> missedTokens;
+
+	/**
+	 * opens the store, the file is created if it does not exist. all JVMs
+	 * sharing the file have to use the same capacity.
+	 *
+	 * @param path
+	 * @param capacity
+	 *            maximum number of sessions
+	 * @throws IOException
+	 */
+	public MappedSessionStore(File path, int capacity) throws IOException {
+		slotCount = capacity;
+		slots = new ConcurrentHashMap<NodeId, Integer>();
+		missedTokens = new LinkedHashMap<NodeId, Boolean>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<NodeId, Boolean> eldest) {
+				return size() > MAX_MISSED_TOKENS;
+			}
+		};
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+
+		final FileLock lock = channel.lock();
+		try {
+			final long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+			final boolean created = file.length() == 0;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (created) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, capacity);
+				buffer.putInt(12, SLOT_SIZE);
+				buffer.force();
+				LOG.info("created session store " + path);
+			} else if (buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != VERSION
+					|| buffer.getInt(8) != capacity
+					|| buffer.getInt(12) != SLOT_SIZE) {
+				throw new IOException(path
+						+ " is no session store of this version and capacity");
+			}
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * writes the session into a free slot, or into the slot it already has.
+	 * slots of expired sessions are reused.
+	 *
+	 * @param s
+	 * @throws IOException
+	 *             if the store is full or the session can not be stored
+	 */
+	public synchronized void put(Session s) throws IOException {
+		final NodeId authToken = s.getAuthenticationToken();
+		final String token = authToken.toString();
+		final String sessionId = s.getSessionID().toString();
+		if (utf8Length(token) > ID_LENGTH - 2
+				|| utf8Length(sessionId) > ID_LENGTH - 2) {
+			throw new IOException("ids of session " + sessionId
+					+ " are too long to be stored");
+		}
+
+		final long hash = hash(token);
+		final FileLock lock = channel.lock();
+		try {
+			final long now = System.currentTimeMillis();
+			int slot = find(authToken, hash);
+			if (slot < 0) {
+				for (int i = 0; i < slotCount && slot < 0; i++) {
+					final int offset = offset(i);
+					if (buffer.getInt(offset + STATE) == FREE
+							|| isExpired(offset, now)) {
+						slot = i;
+					}
+				}
+			}
+			if (slot < 0) {
+				throw new IOException("session store is full");
+			}
+
+			final int offset = offset(slot);
+			// mark free while writing, so nobody reads a half written slot
+			buffer.putInt(offset + STATE, FREE);
+			buffer.putLong(offset + TOKEN_HASH, hash);
+			buffer.putLong(offset + LAST_ACTIVITY, s.getLastActivity());
+			buffer.putDouble(offset + TIMEOUT,
+					s.getTimeout() != null ? s.getTimeout() : Double.NaN);
+			buffer.putLong(offset + MAX_RESP_MSG_SIZE,
+					s.getMaxRespMsgSize() != null ? s.getMaxRespMsgSize()
+							.longValue() : -1);
+			putString(offset + AUTH_TOKEN, ID_LENGTH, token);
+			putString(offset + SESSION_ID, ID_LENGTH, sessionId);
+			putString(offset + SESSION_NAME, NAME_LENGTH, s.getSessionName());
+			putString(offset + LOCALE, LOCALE_LENGTH,
+					s.getLocale() != null ? s.getLocale().toString() : null);
+			buffer.putInt(offset + STATE, USED);
+
+			slots.put(authToken, slot);
+			synchronized (missedTokens) {
+				missedTokens.remove(authToken);
+			}
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * reads a session written by any JVM
+	 *
+	 * @param authToken
+	 * @return a new Session object or null if there is no session for the
+	 *         token or it is expired
+	 */
+	public Session get(NodeId authToken) {
+		synchronized (missedTokens) {
+			if (missedTokens.containsKey(authToken)) {
+				return null;
+			}
+		}
+
+		final String token = authToken.toString();
+		final long hash = hash(token);
+		final int slot = find(authToken, hash);
+		if (slot < 0) {
+			synchronized (missedTokens) {
+				missedTokens.put(authToken, Boolean.TRUE);
+			}
+			return null;
+		}
+
+		final int offset = offset(slot);
+		final long lastActivity = buffer.getLong(offset + LAST_ACTIVITY);
+		final double timeout = buffer.getDouble(offset + TIMEOUT);
+		final long maxRespMsgSize = buffer.getLong(offset + MAX_RESP_MSG_SIZE);
+		final String sessionId = getString(offset + SESSION_ID, ID_LENGTH);
+		final String sessionName = getString(offset + SESSION_NAME,
+				NAME_LENGTH);
+		final String locale = getString(offset + LOCALE, LOCALE_LENGTH);
+
+		// the slot may have been freed or reused while we read it
+		if (buffer.getInt(offset + STATE) != USED
+				|| buffer.getLong(offset + TOKEN_HASH) != hash
+				|| isExpired(offset, System.currentTimeMillis())) {
+			return null;
+		}
+
+		final Session s = new Session();
+		s.setAuthenticationToken(authToken);
+		s.setSessionID(NodeId.parseNodeId(sessionId));
+		s.setSessionName(sessionName);
+		s.setTimeout(Double.isNaN(timeout) ? null : timeout);
+		s.setMaxRespMsgSize(maxRespMsgSize >= 0 ? new UnsignedInteger(
+				maxRespMsgSize) : null);
+		if (locale != null && !locale.isEmpty()) {
+			s.setLocale(toLocale(locale));
+		}
+		// the client sends its description and certificate again when it
+		// activates the session
+		s.setClientInfo(new ClientInfo());
+		s.touch();
+		LOG.debug("read session " + sessionId + ", last activity "
+				+ lastActivity);
+		return s;
+	}
+
+	/**
+	 * updates the last activity of the session, so other JVMs see it is in
+	 * use. does nothing if the stored time is less than a second older.
+	 *
+	 * @param authToken
+	 * @param lastActivity
+	 * @throws IOException
+	 *             if the file can not be locked
+	 */
+	public void touch(NodeId authToken, long lastActivity) throws IOException {
+		final Integer slot = slots.get(authToken);
+		if (slot == null) {
+			return;
+		}
+		final int offset = offset(slot);
+		if (buffer.getLong(offset + LAST_ACTIVITY) + TOUCH_RESOLUTION
+				> lastActivity) {
+			return;
+		}
+
+		synchronized (this) {
+			final FileLock lock = channel.lock();
+			try {
+				// nobody can free or reuse the slot while we hold the lock
+				if (matches(offset, authToken, hash(authToken.toString()))) {
+					buffer.putLong(offset + LAST_ACTIVITY, lastActivity);
+				} else {
+					// the slot was taken over by another session
+					slots.remove(authToken, slot);
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * @param authToken
+	 * @return the last activity written by any JVM or -1 if the session is
+	 *         not stored
+	 */
+	public long getLastActivity(NodeId authToken) {
+		final int slot = find(authToken, hash(authToken.toString()));
+		if (slot < 0) {
+			return -1;
+		}
+		return buffer.getLong(offset(slot) + LAST_ACTIVITY);
+	}
+
+	/**
+	 * frees the slot of the session
+	 *
+	 * @param authToken
+	 * @throws IOException
+	 */
+	public synchronized void remove(NodeId authToken) throws IOException {
+		final FileLock lock = channel.lock();
+		try {
+			final int slot = find(authToken, hash(authToken.toString()));
+			if (slot >= 0) {
+				buffer.putInt(offset(slot) + STATE, FREE);
+			}
+			slots.remove(authToken);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * writes all changes to the file and closes it
+	 */
+	public synchronized void close() {
+		try {
+			buffer.force();
+			file.close();
+		} catch (final IOException e) {
+			LOG.error("could not close session store: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the slot of the session or -1
+	 */
+	private int find(NodeId authToken, long hash) {
+		final Integer known = slots.get(authToken);
+		if (known != null && matches(offset(known), authToken, hash)) {
+			return known;
+		}
+
+		for (int i = 0; i < slotCount; i++) {
+			if (matches(offset(i), authToken, hash)) {
+				slots.put(authToken, i);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matches(int offset, NodeId authToken, long hash) {
+		return buffer.getInt(offset + STATE) == USED
+				&& buffer.getLong(offset + TOKEN_HASH) == hash
+				&& authToken.toString().equals(
+						getString(offset + AUTH_TOKEN, ID_LENGTH));
+	}
+
+	private boolean isExpired(int offset, long now) {
+		final double timeout = buffer.getDouble(offset + TIMEOUT);
+		return !Double.isNaN(timeout)
+				&& buffer.getLong(offset + LAST_ACTIVITY) + (long) timeout < now;
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private void putString(int offset, int length, String value) {
+		byte[] bytes = value != null ? value.getBytes(UTF8) : new byte[0];
+		if (bytes.length > length - 2) {
+			// only names and locales may be cut, ids are checked before
+			final byte[] cut = new byte[length - 2];
+			System.arraycopy(bytes, 0, cut, 0, cut.length);
+			bytes = cut;
+		}
+		buffer.putShort(offset, (short) bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(offset + 2 + i, bytes[i]);
+		}
+	}
+
+	private String getString(int offset, int length) {
+		final int size = Math.min(buffer.getShort(offset), length - 2);
+		if (size <= 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = buffer.get(offset + 2 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private static int utf8Length(String s) {
+		return s.getBytes(UTF8).length;
+	}
+
+	/**
+	 * 64 bit FNV-1a, so slots of other sessions are skipped without decoding
+	 * their token
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static Locale toLocale(String s) {
+		final String[] parts = s.split("_", 3);
+		if (parts.length == 1) {
+			return new Locale(parts[0]);
+		} else if (parts.length == 2) {
+			return new Locale(parts[0], parts[1]);
+		}
+		return new Locale(parts[0], parts[1], parts[2]);
+	}
+}
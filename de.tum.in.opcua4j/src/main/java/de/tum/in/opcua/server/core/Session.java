@@ -82,6 +82,12 @@ public class Session {
 	 */
 	private Object customObj;
 
+	/**
+	 * time (in milliseconds) of the last request of the client, see
+	 * {@link SessionReaper}
+	 */
+	private volatile long lastActivity = System.currentTimeMillis();
+
 	/**
 	 * @return the sessionName
 	 */
@@ -157,6 +163,33 @@ public class Session {
 		this.timeout = timeout;
 	}
 
+	/**
+	 * resets the session timeout, has to be called for every request of the
+	 * client
+	 */
+	public void touch() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the lastActivity
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * @return time (in milliseconds) after which the session times out if
+	 *         the client sends no request. sessions without timeout never
+	 *         expire.
+	 */
+	public long getExpiryTime() {
+		if (timeout == null) {
+			return Long.MAX_VALUE;
+		}
+		return lastActivity + timeout.longValue();
+	}
+
 	/**
 	 * @return the maxRespMsgSize
 	 */
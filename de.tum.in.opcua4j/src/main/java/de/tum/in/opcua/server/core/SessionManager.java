@@ -1,70 +1,162 @@
 package de.tum.in.opcua.server.core;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.NodeId;
 
+import de.tum.in.opcua.server.core.subscription.SubscriptionManager;
+
 /**
- * TODO: timeout mechanism for sessions: java framework Quarz clients have to
- * make some kind of a touch on the session if an requests appears. actually
- * this can be done by the getSessionmethod here
- * 
- * create an ISessionManager with several implementations one could hold the
- * session in a memcache so that several instances of the manager can be used.
- * hence also several instances of the OPC UA server could be used.
- * 
+ * every lookup with {@link #getSession(NodeId)} touches the session, sessions
+ * without requests within their timeout are closed by the
+ * {@link SessionReaper}.
+ *
+ * sessions are only held in memory, see {@link SharedSessionManager} for
+ * several server instances sharing their sessions.
+ *
  * @author harald
  *
  */
-public class SessionManager {
+public class SessionManager implements ISessionManager {
+
+	private static final Logger LOG = Logger.getLogger(SessionManager.class);
+
+	/**
+	 * {@liparamServerSecureChannelnk Session}s managed by the server by
+	 * their authentication token. both, activated and not yet activated
+	 * sessions are stored here. read by every service request without
+	 * locking.
+	 */
+	private final ConcurrentMap<NodeId, Session> sessions;
 
 	/**
-	 * {@liparamServerSecureChannelnk Session}s managed by the server. both,
-	 * activated and not yet activated sessions are stored here.
+	 * the same sessions by their session id
 	 */
-	private final Map<NodeId, Session> sessions;
+	private final ConcurrentMap<NodeId, Session> sessionsById;
 
 	/**
 	 * counter which is increased for every created session
 	 */
-	private static int sessionCount;
+	private final AtomicInteger sessionCount = new AtomicInteger();
+
+	/**
+	 * is told when a session is closed, so it can free the subscriptions
+	 * and PublishRequests of the session
+	 */
+	private final SubscriptionManager subscriptionManager;
 
-	public SessionManager() {
-		sessions = new HashMap<NodeId, Session>();
+	/**
+	 * closes sessions which timed out
+	 */
+	private final SessionReaper reaper;
+
+	public SessionManager(SubscriptionManager subscriptionManager) {
+		sessions = new ConcurrentHashMap<NodeId, Session>(64);
+		sessionsById = new ConcurrentHashMap<NodeId, Session>(64);
+		this.subscriptionManager = subscriptionManager;
+		reaper = new SessionReaper(this);
 	}
 
 	public Session createSession() {
 		final Session newSession = new Session();
+		sessionCount.incrementAndGet();
 		return newSession;
 	}
 
 	public void addSession(Session s) {
+		sessionsById.put(s.getSessionID(), s);
 		sessions.put(s.getAuthenticationToken(), s);
+		reaper.add(s);
 	}
 
 	public Session getSession(NodeId authToken) {
+		if (authToken == null) {
+			return null;
+		}
 		final Session s = sessions.get(authToken);
 
 		if (s == null) {
 			// TODO raise service fault
 		} else {
-			if (!s.isActive()) {
-				// TODO raise service fault
-			}
+			// an inactive session is returned as well, ActivateSession needs
+			// it. the service handlers reject other requests for it.
+			s.touch();
 		}
 
-		// TODO touch the session to reset session-timeout
-
 		return s;
 	}
 
-	public boolean closeSession(NodeId authToken) {
-		final boolean success = true;
+	/**
+	 * @param sessionId
+	 * @return the session with the given session id or null
+	 */
+	public Session getSessionById(NodeId sessionId) {
+		if (sessionId == null) {
+			return null;
+		}
+		return sessionsById.get(sessionId);
+	}
+
+	/**
+	 * @return number of sessions created since the server started
+	 */
+	public int getSessionCount() {
+		return sessionCount.get();
+	}
+
+	/**
+	 * removes the session and frees its resources
+	 *
+	 * @param authToken
+	 * @param deleteSubscriptions
+	 *            true if the subscriptions of the session are deleted
+	 *            immediately
+	 * @return false if there was no session for the token
+	 */
+	public boolean closeSession(NodeId authToken, boolean deleteSubscriptions) {
+		final Session s = authToken != null ? sessions.remove(authToken)
+				: null;
+		if (s == null) {
+			return false;
+		}
+		sessionsById.remove(s.getSessionID(), s);
+
+		LOG.debug("closing session " + s.getSessionID());
+		subscriptionManager.closeSession(s.getSessionID(),
+				deleteSubscriptions);
+		return true;
+	}
 
-		// TODO clear up everything. maybe delete subscriptions!
-		sessions.remove(authToken);
+	/**
+	 * called by the {@link SessionReaper} for a session which timed out. its
+	 * subscriptions are deleted, because we do not support transferring them
+	 * to another session.
+	 *
+	 * @param s
+	 */
+	void expireSession(Session s) {
+		if (sessions.remove(s.getAuthenticationToken(), s)) {
+			sessionsById.remove(s.getSessionID(), s);
+			subscriptionManager.closeSession(s.getSessionID(), true);
+		}
+	}
+
+	/**
+	 * @param s
+	 * @return true if the session is still managed here, i.e. not closed
+	 */
+	boolean isManaged(Session s) {
+		return sessions.get(s.getAuthenticationToken()) == s;
+	}
 
-		return success;
+	/**
+	 * stops the timeout handling. has to be called when the server is
+	 * stopped.
+	 */
+	public void shutdown() {
+		reaper.shutdown();
 	}
 }
@@ -0,0 +1,180 @@
+package de.tum.in.opcua.server.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * closes {@link Session}s whose client did not send a request within the
+ * session timeout.
+ *
+ * sessions are kept in a hashed timing wheel: a ring of buckets, one per tick,
+ * and every session sits in the bucket of the tick it expires in. a single
+ * timer thread visits one bucket per tick. touching a session on a request
+ * only updates its last activity time and never moves it between buckets;
+ * when its bucket comes due, a session which was touched in the meantime is
+ * put into the bucket of its new expiry tick, all others are closed. so
+ * requests never pay more than a volatile write and the reaper only looks at
+ * the sessions that might be expired.
+ *
+ */
+public class SessionReaper {
+
+	private static final Logger LOG = Logger.getLogger(SessionReaper.class);
+
+	/**
+	 * length of a tick in milliseconds. sessions are closed at most one tick
+	 * after their timeout.
+	 */
+	private static final long DEFAULT_TICK = 1000;
+
+	/**
+	 * number of buckets, a power of 2. expiry times beyond one revolution of
+	 * the wheel wrap around and are revisited once per revolution.
+	 */
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final SessionManager sessionManager;
+
+	private final long tickMillis;
+	private final List<Queue<Session>> buckets;
+	private final int mask;
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * next tick to be visited, only advanced by the reaper thread
+	 */
+	private volatile long currentTick;
+
+	public SessionReaper(SessionManager sessionManager) {
+		this(sessionManager, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param sessionManager
+	 * @param tickMillis
+	 *            length of a tick in milliseconds
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of 2
+	 */
+	public SessionReaper(SessionManager sessionManager, long tickMillis,
+			int wheelSize) {
+		this.sessionManager = sessionManager;
+		this.tickMillis = tickMillis;
+
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		buckets = new ArrayList<Queue<Session>>(size);
+		for (int i = 0; i < size; i++) {
+			buckets.add(new ConcurrentLinkedQueue<Session>());
+		}
+		mask = size - 1;
+
+		currentTick = tick(System.currentTimeMillis());
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ReaperThreadFactory());
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				reap();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * starts watching the session
+	 *
+	 * @param session
+	 */
+	public void add(Session session) {
+		session.touch();
+		insert(session);
+	}
+
+	private void insert(Session session) {
+		final long expiry = session.getExpiryTime();
+		if (expiry == Long.MAX_VALUE) {
+			return;
+		}
+
+		// never into the bucket which is being visited right now
+		final long tick = Math.max(tick(expiry) + 1, currentTick + 1);
+		buckets.get((int) (tick & mask)).offer(session);
+	}
+
+	/**
+	 * visits all buckets which became due since the last run
+	 */
+	void reap() {
+		try {
+			final long now = System.currentTimeMillis();
+			final long nowTick = tick(now);
+			while (currentTick <= nowTick) {
+				reapBucket(buckets.get((int) (currentTick & mask)), now);
+				currentTick++;
+			}
+		} catch (final RuntimeException e) {
+			// an exception would cancel the periodic task
+			LOG.error("reaping sessions failed: " + e.getMessage(), e);
+		}
+	}
+
+	private void reapBucket(Queue<Session> bucket, long now) {
+		// sessions put back may land in the same bucket, so take the current
+		// content first
+		final List<Session> due = new ArrayList<Session>();
+		Session session;
+		while ((session = bucket.poll()) != null) {
+			due.add(session);
+		}
+
+		for (final Session s : due) {
+			if (!sessionManager.isManaged(s)) {
+				// closed by the client in the meantime
+				continue;
+			}
+			if (s.getExpiryTime() <= now) {
+				LOG.info("session " + s.getSessionID() + " timed out");
+				sessionManager.expireSession(s);
+			} else {
+				insert(s);
+			}
+		}
+	}
+
+	private long tick(long millis) {
+		return millis / tickMillis;
+	}
+
+	/**
+	 * stops the reaper thread
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * creates a named daemon thread, so that a forgotten {@link #shutdown()}
+	 * does not keep the JVM alive
+	 */
+	private static class ReaperThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "opcua-session-reaper");
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
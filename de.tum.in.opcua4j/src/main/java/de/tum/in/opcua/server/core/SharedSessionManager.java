@@ -0,0 +1,132 @@
+package de.tum.in.opcua.server.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+import de.tum.in.opcua.server.core.subscription.SubscriptionManager;
+
+/**
+ * a {@link SessionManager} which additionally writes its sessions to a
+ * {@link MappedSessionStore}, so several server instances on the same host
+ * share them. a session created by another instance is taken over with the
+ * first request carrying its authentication token, but not activated: the
+ * service handlers reject all requests but ActivateSession and CloseSession
+ * with Bad_SessionNotActivated until the client activated the session again
+ * on its new secure channel.
+ *
+ * only sessions are shared, subscriptions stay with the instance which
+ * created them. the local copies are still watched by the
+ * {@link SessionReaper}; a copy which timed out here while the session is in
+ * use on another instance is just dropped.
+ *
+ * usage, replacing the in-memory manager of the server:
+ *
+ * <pre>
+ * server.setSessionManager(new SharedSessionManager(server
+ * 		.getSubscriptionManager(), file, capacity));
+ * </pre>
+ *
+ */
+public class SharedSessionManager extends SessionManager {
+
+	private static final Logger LOG = Logger
+			.getLogger(SharedSessionManager.class);
+
+	private final MappedSessionStore store;
+
+	/**
+	 * @param subscriptionManager
+	 * @param file
+	 *            the session store, shared by all instances
+	 * @param capacity
+	 *            maximum number of sessions of all instances
+	 * @throws IOException
+	 *             if the store can not be opened
+	 */
+	public SharedSessionManager(SubscriptionManager subscriptionManager,
+			File file, int capacity) throws IOException {
+		super(subscriptionManager);
+		store = new MappedSessionStore(file, capacity);
+	}
+
+	@Override
+	public void addSession(Session s) {
+		super.addSession(s);
+		try {
+			store.put(s);
+		} catch (final IOException e) {
+			// the session still works on this instance
+			LOG.error("could not share session " + s.getSessionID() + ": "
+					+ e.getMessage());
+		}
+	}
+
+	@Override
+	public Session getSession(NodeId authToken) {
+		Session s = super.getSession(authToken);
+		if (s == null && authToken != null) {
+			final Session shared = store.get(authToken);
+			if (shared != null) {
+				LOG.info("continuing session " + shared.getSessionID()
+						+ " of another server instance");
+				// not active until activated on the secure channel to us
+				super.addSession(shared);
+				s = super.getSession(authToken);
+			}
+		}
+		if (s != null) {
+			try {
+				store.touch(authToken, s.getLastActivity());
+			} catch (final IOException e) {
+				// other instances may expire the session early
+				LOG.error("could not touch shared session " + s.getSessionID()
+						+ ": " + e.getMessage());
+			}
+		}
+		return s;
+	}
+
+	@Override
+	public boolean closeSession(NodeId authToken, boolean deleteSubscriptions) {
+		final boolean closed = super.closeSession(authToken,
+				deleteSubscriptions);
+		if (authToken != null) {
+			try {
+				store.remove(authToken);
+			} catch (final IOException e) {
+				LOG.error("could not remove shared session: " + e.getMessage());
+			}
+		}
+		return closed;
+	}
+
+	@Override
+	void expireSession(Session s) {
+		super.expireSession(s);
+
+		final Double timeout = s.getTimeout();
+		final long lastActivity = store.getLastActivity(s
+				.getAuthenticationToken());
+		if (timeout != null && lastActivity >= 0
+				&& lastActivity + timeout.longValue() > System
+						.currentTimeMillis()) {
+			LOG.debug("session " + s.getSessionID()
+					+ " is used by another server instance");
+			return;
+		}
+		try {
+			store.remove(s.getAuthenticationToken());
+		} catch (final IOException e) {
+			LOG.error("could not remove shared session: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		store.close();
+	}
+}
@@ -60,7 +60,7 @@ public class UAServer {
 	/**
 	 * Each Server has exactly one SessionManager.
 	 */
-	protected SessionManager sessionManager;
+	protected ISessionManager sessionManager;
 
 	/**
 	 * handles subscriptions and monitored items for this server
@@ -101,8 +101,8 @@ public class UAServer {
 
 	public UAServer() {
 		stackServer = new Server();
-		sessionManager = new SessionManager();
 		subscriptionManager = new SubscriptionManager();
+		sessionManager = new SessionManager(subscriptionManager);
 		nsTable = NamespaceTable.DEFAULT;
 		customNodeManagers = new ArrayList<INodeManager>();
 
@@ -264,6 +264,8 @@ public class UAServer {
 
 	public void stop() {
 		stackServer.close();
+		sessionManager.shutdown();
+		subscriptionManager.shutdown();
 	}
 
 	/**
@@ -380,16 +382,23 @@ public class UAServer {
 	/**
 	 * @return the sessionManager
 	 */
-	public SessionManager getSessionManager() {
+	public ISessionManager getSessionManager() {
 		return sessionManager;
 	}
 
 	/**
+	 * replaces the session manager, has to be called before the server is
+	 * started. the replaced manager is shut down.
+	 *
 	 * @param sessionManager
 	 *            the sessionManager to set
 	 */
-	public void setSessionManager(SessionManager sessionManager) {
+	public void setSessionManager(ISessionManager sessionManager) {
+		final ISessionManager replaced = this.sessionManager;
 		this.sessionManager = sessionManager;
+		if (replaced != null && replaced != sessionManager) {
+			replaced.shutdown();
+		}
 	}
 
 	/**
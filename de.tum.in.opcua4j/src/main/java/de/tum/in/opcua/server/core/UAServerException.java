@@ -1,5 +1,8 @@
 package de.tum.in.opcua.server.core;
 
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+
 /**
  * will be thrown if an internal exception is thrown by the UAServer. so the
  * transport layer knows about a exception and can react by sending the correct
@@ -10,8 +13,31 @@ package de.tum.in.opcua.server.core;
  */
 public class UAServerException extends Exception {
 
+	/**
+	 * status code sent to the client
+	 */
+	private final UnsignedInteger statusCode;
+
 	public UAServerException(String message) {
+		this(message, StatusCode.BAD.getValue());
+	}
+
+	/**
+	 * @param message
+	 * @param statusCode
+	 *            one of the {@link org.opcfoundation.ua.core.StatusCodes}
+	 */
+	public UAServerException(String message, UnsignedInteger statusCode) {
 		super(message);
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * @return the status code sent to the client, Bad if no specific code
+	 *         was given
+	 */
+	public UnsignedInteger getStatusCode() {
+		return statusCode;
 	}
 
 	private static final long serialVersionUID = 753930035521172608L;
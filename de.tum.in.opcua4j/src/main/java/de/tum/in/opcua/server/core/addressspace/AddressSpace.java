@@ -1,16 +1,35 @@
 package de.tum.in.opcua.server.core.addressspace;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
 import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.core.Node;
+import org.opcfoundation.ua.core.ReadValueId;
 import org.opcfoundation.ua.core.ReferenceDescription;
 import org.opcfoundation.ua.core.ReferenceNode;
+import org.opcfoundation.ua.core.StatusCodes;
 
 import de.tum.in.opcua.server.core.UAServerException;
 import de.tum.in.opcua.server.core.util.NodeUtils;
@@ -20,10 +39,13 @@ import de.tum.in.opcua.server.core.util.NodeUtils;
  * is the union of all used {@link INodeManager}s. the {@link AddressSpace}
  * delegates request to the correct INodeManager or queries all of them.
  * 
+ * the nodeMgrs are held in arrays which are replaced as a whole when a
+ * manager is added, so lookups need no locking and see either the old or the
+ * new set of managers.
+ *
  * @author harald
  *
- *         TODO think of concurrency! (concurrent collections, not synchronized
- *         ones!) TODO handle standard objects (server, session, types, ...)
+ *         TODO handle standard objects (server, session, types, ...)
  *         ServerStatusDataType
  *
  */
@@ -31,10 +53,50 @@ public class AddressSpace {
 
 	private static final Logger LOG = Logger.getLogger(AddressSpace.class);
 
+	/**
+	 * default time (in milliseconds) a node manager gets to return the
+	 * references of a node
+	 */
+	private static final long DEFAULT_BROWSE_TIMEOUT = 5000;
+
+	/**
+	 * maximum number of unfinished browse calls of a single node manager. a
+	 * backend which hangs (and ignores interrupts) ties up at most this many
+	 * threads of the pool.
+	 */
+	private static final int MAX_BROWSE_CALLS_PER_MANAGER = 2;
+
+	/**
+	 * maximum number of browse calls waiting for a thread
+	 */
+	private static final int BROWSE_QUEUE_SIZE = 64;
+
 	// there is only one addressspace
 	private static final AddressSpace INSTANCE = new AddressSpace();
 
+	/**
+	 * asks the node managers for references concurrently. idle threads
+	 * terminate, so there are no threads as long as nobody browses. calls
+	 * are rejected if the queue is full.
+	 */
+	private final ThreadPoolExecutor browseExecutor;
+
+	/**
+	 * number of browse calls per node manager which were submitted and did
+	 * not finish yet, including calls given up after the browse timeout
+	 */
+	private final ConcurrentMap<INodeManager, AtomicInteger> browseCalls;
+
+	private volatile long browseTimeout = DEFAULT_BROWSE_TIMEOUT;
+
 	private AddressSpace() {
+		final int threads = Math.max(4, 2 * Runtime.getRuntime()
+				.availableProcessors());
+		browseExecutor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						BROWSE_QUEUE_SIZE), new BrowseThreadFactory());
+		browseExecutor.allowCoreThreadTimeOut(true);
+		browseCalls = new ConcurrentHashMap<INodeManager, AtomicInteger>();
 	}
 
 	public static AddressSpace getInstance() {
@@ -42,56 +104,266 @@ public class AddressSpace {
 	}
 
 	/**
-	 * an insert-ordered map of all namespace (NS) nodeMgrs of the addressspace.
-	 * key is the NS-index of the servers namespacearray, value is an
-	 * {@link INodeManager}. the nodeMgrs are called on their insert order for
-	 * initialization
+	 * all namespace (NS) nodeMgrs of the addressspace, indexed by the NS-index
+	 * of the servers namespacearray. unused indices are null. never modified,
+	 * replaced by a copy in {@link #addNodeManager(int, INodeManager)}.
 	 */
-	private final Map<Integer, INodeManager> nodeMgrs = new LinkedHashMap<Integer, INodeManager>();
+	private volatile INodeManager[] nodeMgrs = new INodeManager[0];
+
+	/**
+	 * the same nodeMgrs in their insert order, they are called in this order
+	 * for browsing
+	 */
+	private volatile INodeManager[] orderedNodeMgrs = new INodeManager[0];
 
 	public Node getNode(NodeId nodeId) throws UAServerException {
 		// get the node from the managed nodes (the addressspace)
-
-		Node node = null;
-
-		final int nsIndex = nodeId.getNamespaceIndex();
-		if (nodeMgrs.containsKey(nsIndex)) {
-			LOG.debug("ns index for nodeid " + nodeId.toString() + " is "
-					+ nsIndex);
-			node = (Node) nodeMgrs.get(nsIndex).getNode(nodeId);
+		final INodeManager nm = getNodeManager(nodeId.getNamespaceIndex());
+		if (nm == null) {
+			return null;
 		}
-
-		return node;
+		return (Node) nm.getNode(nodeId);
 	}
 
 	public Node getNode(ExpandedNodeId expNodeId) throws UAServerException {
 		return getNode(NodeUtils.toNodeId(expNodeId));
 	}
 
-	public List<ReferenceDescription> browseNode(NodeId nodeId) {
-		final List<ReferenceDescription> refDescs = new ArrayList<ReferenceDescription>();
+	/**
+	 * reads the attributes with one call of {@link INodeManager#read(List)}
+	 * per namespace
+	 *
+	 * @param nodesToRead
+	 * @return one value per element of nodesToRead, in the same order
+	 */
+	public DataValue[] read(List<ReadValueId> nodesToRead) {
+		final DataValue[] values = new DataValue[nodesToRead.size()];
 
-		// collect all references for this node
-		ReferenceNode[] temp = null;
-		for (final INodeManager nm : nodeMgrs.values()) {
-			try {
-				temp = nm.getReferences(nodeId);
-				// we do not trust INodeManager implementations here :)
-				if (temp != null) {
-					LOG.debug("got " + temp.length + " references from "
-							+ nm.getClass().getName());
-					refDescs.addAll(refToRefDesc(temp));
+		// positions of the attributes of every namespace
+		final Map<Integer, List<Integer>> byNamespace = new LinkedHashMap<Integer, List<Integer>>();
+		for (int i = 0; i < values.length; i++) {
+			final int nsIndex = nodesToRead.get(i).getNodeId()
+					.getNamespaceIndex();
+			List<Integer> positions = byNamespace.get(nsIndex);
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				byNamespace.put(nsIndex, positions);
+			}
+			positions.add(i);
+		}
+
+		for (final Map.Entry<Integer, List<Integer>> entry : byNamespace
+				.entrySet()) {
+			final List<Integer> positions = entry.getValue();
+			final INodeManager nm = getNodeManager(entry.getKey());
+			if (nm == null) {
+				for (final int i : positions) {
+					values[i] = AttributeReader
+							.errorValue(StatusCodes.Bad_NodeIdUnknown);
 				}
+				continue;
+			}
+
+			final List<ReadValueId> nsNodesToRead = new ArrayList<ReadValueId>(
+					positions.size());
+			for (final int i : positions) {
+				nsNodesToRead.add(nodesToRead.get(i));
+			}
+
+			DataValue[] nsValues;
+			try {
+				nsValues = nm.read(nsNodesToRead);
 			} catch (final UAServerException e) {
-				// here we catch the exception because we may be able to collect
-				// references from at least one nodemanager
 				LOG.error(e.getMessage(), e);
+				nsValues = new DataValue[positions.size()];
+				for (int j = 0; j < nsValues.length; j++) {
+					nsValues[j] = AttributeReader.errorValue(e.getStatusCode());
+				}
+			}
+
+			for (int j = 0; j < positions.size(); j++) {
+				// we do not trust INodeManager implementations here :)
+				final DataValue value = nsValues != null
+						&& j < nsValues.length ? nsValues[j] : null;
+				values[positions.get(j)] = value != null ? value
+						: AttributeReader
+								.errorValue(StatusCodes.Bad_InternalError);
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * collects the references of the node from all node managers which may
+	 * have some, see {@link IReferenceIndex}. if several managers are asked,
+	 * they are asked concurrently and the browse fails with Bad_Timeout if one
+	 * of them does not answer within the browse timeout, so one slow backend
+	 * does not block the browsing threads. a manager which still has
+	 * {@link #MAX_BROWSE_CALLS_PER_MANAGER} unfinished calls is not asked at
+	 * all, neither are managers whose call does not fit into the queue of the
+	 * pool; the browse fails with Bad_ResourceUnavailable then. we never
+	 * return the references of the other managers as if they were complete.
+	 *
+	 * @param nodeId
+	 * @return
+	 * @throws UAServerException
+	 *             with Bad_Timeout or Bad_ResourceUnavailable if not all
+	 *             managers returned their references
+	 */
+	public List<ReferenceDescription> browseNode(final NodeId nodeId)
+			throws UAServerException {
+		final List<INodeManager> candidates = new ArrayList<INodeManager>();
+		for (final INodeManager nm : orderedNodeMgrs) {
+			if (!(nm instanceof IReferenceIndex)
+					|| ((IReferenceIndex) nm).hasReferences(nodeId)) {
+				candidates.add(nm);
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			return new ArrayList<ReferenceDescription>();
+		} else if (candidates.size() == 1) {
+			// nothing to run concurrently, save the handoff
+			return browseNode(candidates.get(0), nodeId);
+		}
+
+		// status of the first manager which was left out
+		UnsignedInteger failure = null;
+
+		final List<INodeManager> asked = new ArrayList<INodeManager>(
+				candidates.size());
+		final List<Future<List<ReferenceDescription>>> futures = new ArrayList<Future<List<ReferenceDescription>>>(
+				candidates.size());
+		for (final INodeManager nm : candidates) {
+			final Future<List<ReferenceDescription>> future = submitBrowse(
+					nm, nodeId);
+			if (future != null) {
+				asked.add(nm);
+				futures.add(future);
+			} else if (failure == null) {
+				failure = StatusCodes.Bad_ResourceUnavailable;
 			}
 		}
 
+		final List<ReferenceDescription> refDescs = new ArrayList<ReferenceDescription>();
+		final long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(browseTimeout);
+		for (int i = 0; i < futures.size(); i++) {
+			final Future<List<ReferenceDescription>> future = futures.get(i);
+			try {
+				refDescs.addAll(future.get(
+						Math.max(0, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS));
+			} catch (final TimeoutException e) {
+				future.cancel(true);
+				LOG.warn(asked.get(i).getClass().getName()
+						+ " did not return the references of " + nodeId
+						+ " within " + browseTimeout + "ms");
+				if (failure == null) {
+					failure = StatusCodes.Bad_Timeout;
+				}
+			} catch (final ExecutionException e) {
+				LOG.error(e.getCause().getMessage(), e.getCause());
+			} catch (final InterruptedException e) {
+				for (final Future<List<ReferenceDescription>> f : futures) {
+					f.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				if (failure == null) {
+					failure = StatusCodes.Bad_Timeout;
+				}
+				break;
+			}
+		}
+
+		if (failure != null) {
+			throw new UAServerException("references of " + nodeId
+					+ " are incomplete", failure);
+		}
 		return refDescs;
 	}
 
+	/**
+	 * submits the browse call to the pool, unless the manager has too many
+	 * unfinished calls or the pool is full
+	 *
+	 * @return the pending result or null if the manager is left out
+	 */
+	private Future<List<ReferenceDescription>> submitBrowse(
+			final INodeManager nm, final NodeId nodeId) {
+		AtomicInteger calls = browseCalls.get(nm);
+		if (calls == null) {
+			final AtomicInteger newCalls = new AtomicInteger();
+			calls = browseCalls.putIfAbsent(nm, newCalls);
+			if (calls == null) {
+				calls = newCalls;
+			}
+		}
+
+		if (calls.incrementAndGet() > MAX_BROWSE_CALLS_PER_MANAGER) {
+			calls.decrementAndGet();
+			LOG.warn(nm.getClass().getName() + " is still busy, references of "
+					+ nodeId + " are left out");
+			return null;
+		}
+
+		final AtomicInteger pending = calls;
+		final FutureTask<List<ReferenceDescription>> task = new FutureTask<List<ReferenceDescription>>(
+				new Callable<List<ReferenceDescription>>() {
+
+					@Override
+					public List<ReferenceDescription> call() {
+						return browseNode(nm, nodeId);
+					}
+				}) {
+
+			@Override
+			public void run() {
+				// also run for tasks cancelled while queued, so the call is
+				// counted until its thread is free again
+				try {
+					super.run();
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		};
+		try {
+			browseExecutor.execute(task);
+			return task;
+		} catch (final RejectedExecutionException e) {
+			calls.decrementAndGet();
+			LOG.warn("too many browse calls, references of " + nodeId
+					+ " from " + nm.getClass().getName() + " are left out");
+			return null;
+		}
+	}
+
+	/**
+	 * asks one node manager for the references of the node and resolves
+	 * their targets
+	 */
+	private List<ReferenceDescription> browseNode(INodeManager nm,
+			NodeId nodeId) {
+		try {
+			final ReferenceNode[] temp = nm.getReferences(nodeId);
+			// we do not trust INodeManager implementations here :)
+			if (temp != null) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("got " + temp.length + " references from "
+							+ nm.getClass().getName());
+				}
+				return refToRefDesc(temp);
+			}
+		} catch (final UAServerException e) {
+			// here we catch the exception because we may be able to collect
+			// references from at least one nodemanager
+			LOG.error(e.getMessage(), e);
+		}
+		return Collections.emptyList();
+	}
+
 	/**
 	 * for all given {@link ReferenceNode} a {@link ReferenceDescription} is
 	 * created which can be returned in the browseRequest.
@@ -121,21 +393,92 @@ public class AddressSpace {
 		return refDescList;
 	}
 
-	public void addNodeManager(int nsIndex, INodeManager partition) {
-		if (nodeMgrs.containsKey(nsIndex)) {
+	/**
+	 * adds the manager for the namespace, an existing manager of the
+	 * namespace is replaced. may be called while requests are served.
+	 *
+	 * @param nsIndex
+	 * @param partition
+	 */
+	public synchronized void addNodeManager(int nsIndex, INodeManager partition) {
+		final INodeManager[] current = nodeMgrs;
+		final INodeManager old = nsIndex < current.length ? current[nsIndex]
+				: null;
+		if (old != null) {
 			// TODO throw new exception - not supported to change nodeMgrs for
 			// namespace
+			LOG.warn("replacing node manager of namespace " + nsIndex);
+		}
+
+		final INodeManager[] updated = Arrays.copyOf(current,
+				Math.max(current.length, nsIndex + 1));
+		updated[nsIndex] = partition;
+
+		final INodeManager[] ordered;
+		if (old != null) {
+			ordered = orderedNodeMgrs.clone();
+			for (int i = 0; i < ordered.length; i++) {
+				if (ordered[i] == old) {
+					ordered[i] = partition;
+				}
+			}
+		} else {
+			ordered = Arrays.copyOf(orderedNodeMgrs,
+					orderedNodeMgrs.length + 1);
+			ordered[ordered.length - 1] = partition;
 		}
 
-		nodeMgrs.put(nsIndex, partition);
+		orderedNodeMgrs = ordered;
+		nodeMgrs = updated;
 	}
 
+	/**
+	 * @param nsIndex
+	 * @return the manager of the namespace or null
+	 */
 	public INodeManager getNodeManager(int nsIndex) {
-		return nodeMgrs.get(nsIndex);
+		final INodeManager[] current = nodeMgrs;
+		if (nsIndex < 0 || nsIndex >= current.length) {
+			return null;
+		}
+		return current[nsIndex];
 	}
 
 	public CoreNodeManager getCoreNodeManager() {
-		return (CoreNodeManager) nodeMgrs.get(0);
+		return (CoreNodeManager) getNodeManager(0);
+	}
+
+	/**
+	 * @return the time (in milliseconds) a node manager gets to return the
+	 *         references of a node
+	 */
+	public long getBrowseTimeout() {
+		return browseTimeout;
+	}
+
+	/**
+	 * @param browseTimeout
+	 *            the time (in milliseconds) a node manager gets to return the
+	 *            references of a node
+	 */
+	public void setBrowseTimeout(long browseTimeout) {
+		this.browseTimeout = browseTimeout;
+	}
+
+	/**
+	 * creates named daemon threads, the address space is never shut down
+	 */
+	private static class BrowseThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "opcua-browse-"
+					+ count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
 	}
 
 }
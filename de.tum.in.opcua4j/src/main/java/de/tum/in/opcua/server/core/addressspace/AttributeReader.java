@@ -0,0 +1,101 @@
+package de.tum.in.opcua.server.core.addressspace;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.Node;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.StatusCodes;
+
+import de.tum.in.opcua.server.core.UAServerException;
+
+/**
+ * reads attributes from the {@link Node}s of an {@link INodeManager}. this is
+ * the default implementation of {@link INodeManager#read(List)} for managers
+ * which have no cheaper way to read many values at once.
+ *
+ */
+public class AttributeReader {
+
+	private static final Logger LOG = Logger.getLogger(AttributeReader.class);
+
+	private AttributeReader() {
+	}
+
+	/**
+	 * fetches every node once with {@link INodeManager#getNode(NodeId)} and
+	 * reads the attributes from it. a node which can not be fetched only
+	 * fails its own attributes.
+	 *
+	 * @param nodeMgr
+	 * @param nodesToRead
+	 * @return one value per element of nodesToRead, in the same order
+	 */
+	public static DataValue[] read(INodeManager nodeMgr,
+			List<ReadValueId> nodesToRead) {
+		final DataValue[] values = new DataValue[nodesToRead.size()];
+
+		// we may read different attributes from one node and do not want to
+		// fetch the node again
+		final Map<NodeId, Node> nodes = new HashMap<NodeId, Node>();
+		final Map<NodeId, UnsignedInteger> failures = new HashMap<NodeId, UnsignedInteger>();
+
+		for (int i = 0; i < values.length; i++) {
+			final ReadValueId readId = nodesToRead.get(i);
+			final NodeId nodeId = readId.getNodeId();
+			if (!nodes.containsKey(nodeId) && !failures.containsKey(nodeId)) {
+				try {
+					nodes.put(nodeId, nodeMgr.getNode(nodeId));
+				} catch (final UAServerException e) {
+					LOG.error(e.getMessage(), e);
+					failures.put(nodeId, e.getStatusCode());
+				}
+			}
+
+			final UnsignedInteger failure = failures.get(nodeId);
+			values[i] = failure != null ? errorValue(failure) : read(
+					nodes.get(nodeId), readId.getAttributeId());
+		}
+
+		return values;
+	}
+
+	/**
+	 * @param node
+	 *            may be null
+	 * @param attrId
+	 * @return the value of the attribute, with Bad_NodeIdUnknown if there is
+	 *         no node
+	 */
+	public static DataValue read(Node node, UnsignedInteger attrId) {
+		final DataValue val = new DataValue();
+		if (node == null) {
+			val.setStatusCode(new StatusCode(StatusCodes.Bad_NodeIdUnknown));
+		} else {
+			node.readAttributeValue(attrId, val);
+			if (val.getStatusCode() == null) {
+				val.setStatusCode(StatusCode.GOOD);
+			}
+		}
+		val.setServerTimestamp(new DateTime());
+
+		return val;
+	}
+
+	/**
+	 * @param statusCode
+	 * @return a value without content reporting the status code
+	 */
+	public static DataValue errorValue(UnsignedInteger statusCode) {
+		final DataValue val = new DataValue(new StatusCode(statusCode));
+		val.setServerTimestamp(new DateTime());
+		return val;
+	}
+}
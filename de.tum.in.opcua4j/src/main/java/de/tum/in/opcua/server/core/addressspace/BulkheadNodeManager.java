@@ -0,0 +1,399 @@
+package de.tum.in.opcua.server.core.addressspace;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.Node;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.ReferenceNode;
+import org.opcfoundation.ua.core.StatusCodes;
+
+import de.tum.in.opcua.server.annotation.MonitorItemManagable;
+import de.tum.in.opcua.server.core.UAServerException;
+import de.tum.in.opcua.server.core.history.IHistoryManager;
+
+/**
+ * isolates an {@link INodeManager} whose backend (a field bus, a database,
+ * ...) may hang. the calls reading from the backend are executed on a small
+ * pool of threads owned by this manager and the caller waits at most the
+ * configured timeout, so a hung backend only ties up its own threads and not
+ * the threads of the stack.
+ *
+ * calls which time out fail with Bad_Timeout. if the pool and its queue are
+ * full, calls fail immediately with Bad_ResourceUnavailable. after a number of
+ * failures in a row the circuit opens: all calls fail immediately with
+ * Bad_ResourceUnavailable until the open time is over, then a single call is
+ * let through to probe the backend. if it succeeds the circuit closes again.
+ *
+ * usage:
+ *
+ * <pre>
+ * server.addNodeManager(new BulkheadNodeManager(new MyNodeManager()));
+ * </pre>
+ *
+ */
+public class BulkheadNodeManager implements INodeManager, IReferenceIndex,
+		MonitorItemManagable {
+
+	private static final Logger LOG = Logger
+			.getLogger(BulkheadNodeManager.class);
+
+	private static final int DEFAULT_THREADS = 4;
+	private static final int DEFAULT_QUEUE_SIZE = 64;
+	private static final long DEFAULT_TIMEOUT = 5000;
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	private static final long DEFAULT_OPEN_TIME = 30000;
+
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+	private final INodeManager delegate;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * time (in milliseconds) a caller waits for the backend
+	 */
+	private final long timeout;
+
+	/**
+	 * number of failures in a row which open the circuit
+	 */
+	private final int failureThreshold;
+
+	/**
+	 * time (in milliseconds) the circuit stays open before it is probed
+	 */
+	private final long openTime;
+
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * time until which the circuit is open, 0 if it is closed
+	 */
+	private volatile long openUntil;
+
+	/**
+	 * set while the single call probing a half open circuit runs
+	 */
+	private final AtomicBoolean probing = new AtomicBoolean();
+
+	/**
+	 * isolates the manager with 4 threads, a timeout of 5 seconds and a
+	 * circuit opening for 30 seconds after 5 failures in a row
+	 *
+	 * @param delegate
+	 */
+	public BulkheadNodeManager(INodeManager delegate) {
+		this(delegate, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT,
+				DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+	}
+
+	/**
+	 * @param delegate
+	 *            the isolated node manager
+	 * @param threads
+	 *            maximum number of concurrent calls to the delegate
+	 * @param queueSize
+	 *            maximum number of calls waiting for a thread
+	 * @param timeout
+	 *            time (in milliseconds) a caller waits for the delegate
+	 * @param failureThreshold
+	 *            number of failures in a row which open the circuit
+	 * @param openTime
+	 *            time (in milliseconds) the circuit stays open
+	 */
+	public BulkheadNodeManager(INodeManager delegate, int threads,
+			int queueSize, long timeout, int failureThreshold, long openTime) {
+		this.delegate = delegate;
+		this.timeout = timeout;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+
+		executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						Math.max(1, queueSize)), new BulkheadThreadFactory(
+						"opcua-bulkhead-" + POOL_COUNT.incrementAndGet()));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * initialized on the calling thread, without timeout
+	 */
+	@Override
+	public void init(AddressSpace addrSpace, int nsIndex) {
+		delegate.init(addrSpace, nsIndex);
+	}
+
+	@Override
+	public Node getNode(final NodeId nodeId) throws UAServerException {
+		return call(new Callable<Node>() {
+
+			@Override
+			public Node call() throws UAServerException {
+				return delegate.getNode(nodeId);
+			}
+		}, "getNode " + nodeId);
+	}
+
+	@Override
+	public ReferenceNode[] getReferences(final NodeId nodeId)
+			throws UAServerException {
+		return call(new Callable<ReferenceNode[]>() {
+
+			@Override
+			public ReferenceNode[] call() throws UAServerException {
+				return delegate.getReferences(nodeId);
+			}
+		}, "getReferences " + nodeId);
+	}
+
+	@Override
+	public boolean hasReferences(NodeId nodeId) {
+		if (delegate instanceof IReferenceIndex) {
+			return ((IReferenceIndex) delegate).hasReferences(nodeId);
+		}
+		return true;
+	}
+
+	@Override
+	public DataValue readNodeAttribute(final NodeId nodeId,
+			final UnsignedInteger attrId) {
+		try {
+			return call(new Callable<DataValue>() {
+
+				@Override
+				public DataValue call() {
+					return delegate.readNodeAttribute(nodeId, attrId);
+				}
+			}, "readNodeAttribute " + nodeId);
+		} catch (final UAServerException e) {
+			return AttributeReader.errorValue(e.getStatusCode());
+		}
+	}
+
+	@Override
+	public DataValue[] read(final List<ReadValueId> nodesToRead)
+			throws UAServerException {
+		return call(new Callable<DataValue[]>() {
+
+			@Override
+			public DataValue[] call() throws UAServerException {
+				return delegate.read(nodesToRead);
+			}
+		}, "read of " + nodesToRead.size() + " attributes");
+	}
+
+	/**
+	 * adds to the local model of the delegate, without timeout
+	 */
+	@Override
+	public void addNode(Node node, NodeId parentNode, NodeId referenceId) {
+		delegate.addNode(node, parentNode, referenceId);
+	}
+
+	@Override
+	public IHistoryManager getHistoryManager() {
+		return delegate.getHistoryManager();
+	}
+
+	/**
+	 * returns false, so the attribute is sampled, if the delegate can not
+	 * push changes or does not answer in time
+	 */
+	@Override
+	public boolean startMonitoring(final NodeId nodeId,
+			final UnsignedInteger attrId, final IValueChangeListener listener) {
+		if (!(delegate instanceof MonitorItemManagable)) {
+			return false;
+		}
+		try {
+			return call(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					return ((MonitorItemManagable) delegate).startMonitoring(
+							nodeId, attrId, listener);
+				}
+			}, "startMonitoring " + nodeId);
+		} catch (final UAServerException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void stopMonitoring(final NodeId nodeId,
+			final UnsignedInteger attrId, final IValueChangeListener listener) {
+		if (!(delegate instanceof MonitorItemManagable)) {
+			return;
+		}
+		try {
+			call(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					((MonitorItemManagable) delegate).stopMonitoring(nodeId,
+							attrId, listener);
+					return null;
+				}
+			}, "stopMonitoring " + nodeId);
+		} catch (final UAServerException e) {
+			// already logged
+		}
+	}
+
+	/**
+	 * @return true if calls are currently rejected without asking the
+	 *         delegate
+	 */
+	public boolean isOpen() {
+		return openUntil != 0;
+	}
+
+	/**
+	 * @return the isolated node manager
+	 */
+	public INodeManager getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * stops the threads of the bulkhead. calls running on them are
+	 * interrupted.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * runs the task on the pool and waits at most the timeout for it
+	 *
+	 * @param task
+	 * @param description
+	 *            of the call, for logging
+	 * @return the result of the task
+	 * @throws UAServerException
+	 *             thrown by the task, or with Bad_Timeout or
+	 *             Bad_ResourceUnavailable if the delegate did not answer
+	 */
+	private <T> T call(Callable<T> task, String description)
+			throws UAServerException {
+		final boolean probe = acquire(description);
+
+		Future<T> future = null;
+		boolean success = false;
+		try {
+			future = executor.submit(task);
+			final T result = future.get(timeout, TimeUnit.MILLISECONDS);
+			success = true;
+			return result;
+		} catch (final RejectedExecutionException e) {
+			LOG.warn(delegateName() + " is busy, rejected " + description);
+			throw new UAServerException(delegateName() + " is busy",
+					StatusCodes.Bad_ResourceUnavailable);
+		} catch (final TimeoutException e) {
+			future.cancel(true);
+			LOG.warn(delegateName() + " did not answer " + description
+					+ " within " + timeout + "ms");
+			throw new UAServerException(delegateName() + " timed out",
+					StatusCodes.Bad_Timeout);
+		} catch (final InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new UAServerException("interrupted while waiting for "
+					+ delegateName(), StatusCodes.Bad_Timeout);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof UAServerException) {
+				// an answer of the backend, not a failure of it
+				success = true;
+				throw (UAServerException) cause;
+			}
+			LOG.error(description + " failed: " + cause.getMessage(), cause);
+			throw new UAServerException(String.valueOf(cause.getMessage()),
+					StatusCodes.Bad_InternalError);
+		} finally {
+			release(probe, success);
+		}
+	}
+
+	/**
+	 * checks the circuit before a call
+	 *
+	 * @return true if the call probes a half open circuit
+	 * @throws UAServerException
+	 *             if the circuit is open
+	 */
+	private boolean acquire(String description) throws UAServerException {
+		final long until = openUntil;
+		if (until == 0) {
+			return false;
+		}
+		if (System.currentTimeMillis() >= until
+				&& probing.compareAndSet(false, true)) {
+			LOG.info("probing " + delegateName() + " with " + description);
+			return true;
+		}
+		throw new UAServerException(delegateName() + " is unavailable",
+				StatusCodes.Bad_ResourceUnavailable);
+	}
+
+	/**
+	 * records the outcome of a call
+	 */
+	private void release(boolean probe, boolean success) {
+		if (success) {
+			failures.set(0);
+			if (openUntil != 0) {
+				LOG.info("closing circuit of " + delegateName());
+				openUntil = 0;
+			}
+		} else if (failures.incrementAndGet() >= failureThreshold
+				&& (probe || openUntil == 0)) {
+			LOG.warn("opening circuit of " + delegateName() + " for "
+					+ openTime + "ms");
+			openUntil = System.currentTimeMillis() + openTime;
+		}
+		if (probe) {
+			probing.set(false);
+		}
+	}
+
+	private String delegateName() {
+		return delegate.getClass().getName();
+	}
+
+	/**
+	 * creates named daemon threads, so that a forgotten {@link #shutdown()}
+	 * does not keep the JVM alive
+	 */
+	private static class BulkheadThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		BulkheadThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
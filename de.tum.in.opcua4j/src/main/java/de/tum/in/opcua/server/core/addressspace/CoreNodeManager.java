@@ -43,7 +43,7 @@ import de.tum.in.opcua.server.core.util.NodeUtils;
  * @author harald
  *
  */
-public class CoreNodeManager implements INodeManager {
+public class CoreNodeManager implements INodeManager, IReferenceIndex {
 
 	private static final String CSV_FILE_PATH = "/addressspace/StandardTypes.csv";
 	private static final String XML_FILE_PATH = "/addressspace/UADefinedTypes.xml";
@@ -261,6 +261,15 @@ public class CoreNodeManager implements INodeManager {
 		return refs;
 	}
 
+	/**
+	 * only the parsed nodes have references, the server status variables
+	 * created in {@link #getNode(NodeId)} have none
+	 */
+	@Override
+	public boolean hasReferences(NodeId nodeId) {
+		return nodes.containsKey(nodeId);
+	}
+
 	@Override
 	public DataValue readNodeAttribute(NodeId nodeId, UnsignedInteger attrId) {
 		// TODO Auto-generated method stub
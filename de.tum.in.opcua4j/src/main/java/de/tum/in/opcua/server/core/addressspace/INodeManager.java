@@ -1,9 +1,12 @@
 package de.tum.in.opcua.server.core.addressspace;
 
+import java.util.List;
+
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.core.Node;
+import org.opcfoundation.ua.core.ReadValueId;
 import org.opcfoundation.ua.core.ReferenceNode;
 
 import de.tum.in.opcua.server.core.UAServerException;
@@ -14,31 +17,10 @@ import de.tum.in.opcua.server.core.history.IHistoryManager;
  * specific namespace. it also handles history service and monitoring items for
  * this namespace.
  * 
- * TODO: to not block the client, we could implement a timeout when calling
- * getNode or getReferences on the implementation of this interface. something
- * like this:
- * 
- * <pre>
- * 
- * ExecutorService executor = Executors.newCachedThreadPool();
- * Callable&lt;Object&gt; task = new Callable&lt;Object&gt;() {
- * 	public Object call() {
- * 		return something.blockingMethod();
- * 	}
- * };
- * Future&lt;Object&gt; future = executor.submit(task);
- * try {
- * 	Object result = future.get(5, TimeUnit.SECONDS);
- * } catch (TimeoutException ex) {
- * 	// handle the timeout
- * } catch (InterruptedException e) {
- * 	// handle the interrupts
- * } catch (ExecutionException e) {
- * 	// handle other exceptions
- * } finally {
- * 	future.cancel(); // may or may not desire this
- * }
- * </pre>
+ * getReferences is called with a timeout when browsing, see
+ * {@link AddressSpace#browseNode(NodeId)}. node managers whose backend may
+ * hang can be wrapped in a {@link BulkheadNodeManager}, which calls them with
+ * a timeout on threads of their own.
  * 
  * @author harald
  *
@@ -54,6 +36,25 @@ public interface INodeManager {
 
 	public DataValue readNodeAttribute(NodeId nodeId, UnsignedInteger attrId);
 
+	/**
+	 * reads the attributes of several nodes of this namespace at once. is
+	 * called once per namespace for all nodes of a read request and for all
+	 * attributes sampled at the same time, so backends like databases can
+	 * fetch them in one round trip. by default the nodes are fetched with
+	 * {@link #getNode(NodeId)}, see
+	 * {@link AttributeReader#read(INodeManager, List)}.
+	 * 
+	 * @param nodesToRead
+	 * @return one value per element of nodesToRead, in the same order.
+	 *         errors of single attributes are reported in their status code.
+	 * @throws UAServerException
+	 *             if none of the attributes could be read
+	 */
+	public default DataValue[] read(List<ReadValueId> nodesToRead)
+			throws UAServerException {
+		return AttributeReader.read(this, nodesToRead);
+	}
+
 	public void addNode(Node node, NodeId parentNode, NodeId referenceId);
 
 	/**
@@ -0,0 +1,23 @@
+package de.tum.in.opcua.server.core.addressspace;
+
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+/**
+ * can be implemented by {@link INodeManager}s which know cheaply for which
+ * nodes they hold references. when browsing, the {@link AddressSpace} only
+ * asks the managers which may have references for the node. managers not
+ * implementing this interface are always asked.
+ *
+ */
+public interface IReferenceIndex {
+
+	/**
+	 * must not block and must not return false if
+	 * {@link INodeManager#getReferences(NodeId)} could return references for
+	 * the node.
+	 *
+	 * @param nodeId
+	 * @return false if the manager has no references for the node
+	 */
+	public boolean hasReferences(NodeId nodeId);
+}
@@ -0,0 +1,31 @@
+package de.tum.in.opcua.server.core.addressspace;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+
+import de.tum.in.opcua.server.annotation.MonitorItemManagable;
+
+/**
+ * receives value changes pushed by an {@link INodeManager} which implements
+ * {@link MonitorItemManagable}. implementations may be called from any thread
+ * of the node manager and must return quickly.
+ *
+ */
+public interface IValueChangeListener {
+
+	/**
+	 * called every time the value of a monitored attribute changed
+	 *
+	 * @param nodeId
+	 *            the node whose attribute changed
+	 * @param attrId
+	 *            the changed attribute
+	 * @param value
+	 *            the new value. if no timestamps are set, the server sets
+	 *            them.
+	 */
+	public void valueChanged(NodeId nodeId, UnsignedInteger attrId,
+			DataValue value);
+
+}
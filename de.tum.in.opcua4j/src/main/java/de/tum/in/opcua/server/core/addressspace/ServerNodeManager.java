@@ -17,7 +17,7 @@ import de.tum.in.opcua.server.core.history.IHistoryManager;
  * @author harald
  * 
  */
-public class ServerNodeManager implements INodeManager {
+public class ServerNodeManager implements INodeManager, IReferenceIndex {
 
 	private static final Logger LOG = Logger.getLogger(ServerNodeManager.class);
 
@@ -33,6 +33,12 @@ public class ServerNodeManager implements INodeManager {
 		return null;
 	}
 
+	@Override
+	public boolean hasReferences(NodeId nodeId) {
+		// no nodes yet
+		return false;
+	}
+
 	@Override
 	public DataValue readNodeAttribute(NodeId nodeId, UnsignedInteger attrId) {
 		// TODO Auto-generated method stub
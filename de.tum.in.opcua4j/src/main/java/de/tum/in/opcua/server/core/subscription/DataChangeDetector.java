@@ -0,0 +1,170 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.DataChangeFilter;
+import org.opcfoundation.ua.core.DataChangeTrigger;
+import org.opcfoundation.ua.core.DeadbandType;
+import org.opcfoundation.ua.core.StatusCodes;
+
+/**
+ * decides if a sampled value of a {@link MonitoredItem} is a change which has
+ * to be reported to the client. implements the rules of the
+ * {@link DataChangeFilter} (OPC UA Part 4, 7.16.2): the trigger defines which
+ * parts of the {@link DataValue} are compared and an absolute deadband
+ * suppresses small changes of numeric values.
+ *
+ * if no filter is given, the default trigger StatusValue without deadband is
+ * used.
+ *
+ */
+public class DataChangeDetector {
+
+	private DataChangeDetector() {
+	}
+
+	/**
+	 * @param filter
+	 *            filter of the monitored item, may be null
+	 * @param oldValue
+	 *            last reported value, null if nothing was reported yet
+	 * @param newValue
+	 *            sampled value
+	 * @return true if the newValue has to be reported
+	 */
+	public static boolean hasChanged(DataChangeFilter filter,
+			DataValue oldValue, DataValue newValue) {
+		if (oldValue == null) {
+			return true;
+		}
+
+		if (!equal(oldValue.getStatusCode(), newValue.getStatusCode())) {
+			return true;
+		}
+
+		final DataChangeTrigger trigger = getTrigger(filter);
+		if (trigger == DataChangeTrigger.Status) {
+			return false;
+		}
+
+		if (valueChanged(filter, oldValue.getValue(), newValue.getValue())) {
+			return true;
+		}
+
+		if (trigger == DataChangeTrigger.StatusValueTimestamp) {
+			return !equal(oldValue.getSourceTimestamp(),
+					newValue.getSourceTimestamp());
+		}
+
+		return false;
+	}
+
+	/**
+	 * checks if the given filter is supported. returns null if the filter is
+	 * valid, otherwise the {@link StatusCode} which should be returned to the
+	 * client.
+	 *
+	 * @param filter
+	 * @return
+	 */
+	public static StatusCode validate(DataChangeFilter filter) {
+		if (filter == null || filter.getDeadbandType() == null) {
+			return null;
+		}
+
+		final int deadbandType = filter.getDeadbandType().intValue();
+		if (deadbandType == DeadbandType.None.getValue()) {
+			return null;
+		} else if (deadbandType == DeadbandType.Absolute.getValue()) {
+			if (filter.getDeadbandValue() == null
+					|| filter.getDeadbandValue() < 0) {
+				return new StatusCode(StatusCodes.Bad_DeadbandFilterInvalid);
+			}
+			return null;
+		}
+
+		// percent deadbands need the EURange of the variable, which we do
+		// not know
+		return new StatusCode(StatusCodes.Bad_MonitoredItemFilterUnsupported);
+	}
+
+	private static DataChangeTrigger getTrigger(DataChangeFilter filter) {
+		if (filter == null || filter.getTrigger() == null) {
+			return DataChangeTrigger.StatusValue;
+		}
+		return filter.getTrigger();
+	}
+
+	private static double getAbsoluteDeadband(DataChangeFilter filter) {
+		if (filter != null
+				&& filter.getDeadbandType() != null
+				&& filter.getDeadbandType().intValue() == DeadbandType.Absolute
+						.getValue() && filter.getDeadbandValue() != null) {
+			return filter.getDeadbandValue();
+		}
+		return 0;
+	}
+
+	private static boolean valueChanged(DataChangeFilter filter,
+			Variant oldVariant, Variant newVariant) {
+		final Object oldValue = oldVariant != null ? oldVariant.getValue()
+				: null;
+		final Object newValue = newVariant != null ? newVariant.getValue()
+				: null;
+
+		final double deadband = getAbsoluteDeadband(filter);
+		if (deadband > 0) {
+			if (oldValue instanceof Number && newValue instanceof Number) {
+				return exceedsDeadband((Number) oldValue, (Number) newValue,
+						deadband);
+			}
+			if (oldValue != null && newValue != null
+					&& oldValue.getClass().isArray()
+					&& newValue.getClass().isArray()) {
+				return arrayExceedsDeadband(oldValue, newValue, deadband);
+			}
+		}
+
+		// deepEquals handles arrays of primitives and multi dimensional arrays
+		return !Arrays.deepEquals(new Object[] { oldValue },
+				new Object[] { newValue });
+	}
+
+	/**
+	 * for arrays the deadband is applied to every element. a changed length
+	 * or a changed non numeric element is always a change.
+	 */
+	private static boolean arrayExceedsDeadband(Object oldArray,
+			Object newArray, double deadband) {
+		final int length = Array.getLength(oldArray);
+		if (length != Array.getLength(newArray)) {
+			return true;
+		}
+		for (int i = 0; i < length; i++) {
+			final Object o = Array.get(oldArray, i);
+			final Object n = Array.get(newArray, i);
+			if (o instanceof Number && n instanceof Number) {
+				if (exceedsDeadband((Number) o, (Number) n, deadband)) {
+					return true;
+				}
+			} else if (!Arrays.deepEquals(new Object[] { o },
+					new Object[] { n })) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean exceedsDeadband(Number oldValue, Number newValue,
+			double deadband) {
+		return Math.abs(newValue.doubleValue() - oldValue.doubleValue()) > deadband;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
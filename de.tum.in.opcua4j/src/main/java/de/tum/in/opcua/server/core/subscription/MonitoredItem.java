@@ -1,21 +1,67 @@
 package de.tum.in.opcua.server.core.subscription;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.DataChangeFilter;
 import org.opcfoundation.ua.core.MonitoringMode;
+import org.opcfoundation.ua.encoding.EncodingException;
 
 public class MonitoredItem {
 
+	private static final Logger LOG = Logger.getLogger(MonitoredItem.class);
+
 	private int id;
 	private NodeId nodeId;
 	private UnsignedInteger attributeId;
-	private MonitoringMode mode;
+	private volatile MonitoringMode mode;
 
 	private UnsignedInteger clientHandle;
 	private Double samplingInterval;
 	private UnsignedInteger queueSize;
 	private Boolean discardOldest;
 
+	/**
+	 * filter deciding which samples are reported, null for the default
+	 */
+	private DataChangeFilter filter;
+
+	/**
+	 * last sampled value that passed the filter
+	 */
+	private DataValue lastValue;
+
+	/**
+	 * values waiting to be sent with the next publish response. sized by
+	 * queueSize and discardOldest.
+	 */
+	private NotificationQueue queue = new NotificationQueue(1, true);
+
+	/**
+	 * true while this item is in the queue of changed items of its
+	 * Subscription
+	 */
+	private final AtomicBoolean queued = new AtomicBoolean();
+
+	/**
+	 * items linked to this one with SetTriggering. the ones in sampling mode
+	 * are reported whenever this item queues a new value.
+	 */
+	private final Set<MonitoredItem> triggeredItems = new CopyOnWriteArraySet<MonitoredItem>();
+
+	/**
+	 * the reverse links: items this one is linked to with SetTriggering, so a
+	 * deleted item is unlinked without looking at all items. only used while
+	 * holding the lock of the subscription.
+	 */
+	private final Set<MonitoredItem> triggeringItems = new HashSet<MonitoredItem>();
+
 	/**
 	 * Subscription this MonitoredItem belongs to
 	 */
@@ -83,11 +129,30 @@ public class MonitoredItem {
 	}
 
 	/**
+	 * sets the mode. disabling the item drops all values not yet published.
+	 * if the item is set to reporting, values already queued while sampling
+	 * are published with the next publish.
+	 *
 	 * @param mode
 	 *            the mode to set
 	 */
 	public void setMode(MonitoringMode mode) {
-		this.mode = mode;
+		synchronized (this) {
+			this.mode = mode;
+			if (mode == MonitoringMode.Disabled) {
+				queue.clear();
+				lastValue = null;
+				return;
+			}
+			if (queue.isEmpty()) {
+				return;
+			}
+		}
+
+		if (mode == MonitoringMode.Reporting
+				&& queued.compareAndSet(false, true)) {
+			subscription.itemChanged(this);
+		}
 	}
 
 	/**
@@ -101,7 +166,7 @@ public class MonitoredItem {
 	 * @param clientHandle
 	 *            the clientHandle to set
 	 */
-	public void setClientHandle(UnsignedInteger clientHandle) {
+	public synchronized void setClientHandle(UnsignedInteger clientHandle) {
 		this.clientHandle = clientHandle;
 	}
 
@@ -131,8 +196,9 @@ public class MonitoredItem {
 	 * @param queueSize
 	 *            the queueSize to set
 	 */
-	public void setQueueSize(UnsignedInteger queueSize) {
+	public synchronized void setQueueSize(UnsignedInteger queueSize) {
 		this.queueSize = queueSize;
+		rebuildQueue();
 	}
 
 	/**
@@ -146,8 +212,155 @@ public class MonitoredItem {
 	 * @param discardOldest
 	 *            the discardOldest to set
 	 */
-	public void setDiscardOldest(Boolean discardOldest) {
+	public synchronized void setDiscardOldest(Boolean discardOldest) {
 		this.discardOldest = discardOldest;
+		rebuildQueue();
+	}
+
+	/**
+	 * replaces the queue if queueSize or discardOldest changed. values
+	 * already queued are kept as far as they fit.
+	 */
+	private void rebuildQueue() {
+		final int capacity = queueSize != null ? queueSize.intValue() : 1;
+		final boolean oldest = discardOldest != null ? discardOldest : true;
+		if (queue.capacity() == Math.max(1, capacity)
+				&& queue.isDiscardOldest() == oldest) {
+			return;
+		}
+
+		final NotificationQueue newQueue = new NotificationQueue(capacity,
+				oldest);
+		DataValue value;
+		while ((value = queue.poll()) != null) {
+			newQueue.add(value);
+		}
+		queue = newQueue;
+	}
+
+	/**
+	 * @return the filter
+	 */
+	public DataChangeFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @param filter
+	 *            the filter to set
+	 */
+	public synchronized void setFilter(DataChangeFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * called with every sampled value. if the value is a change according to
+	 * the filter, it is stored for the next publish and the item is queued at
+	 * its Subscription.
+	 *
+	 * @param value
+	 * @return true if the value was a change
+	 */
+	public boolean sample(DataValue value) {
+		synchronized (this) {
+			if (mode == MonitoringMode.Disabled
+					|| !DataChangeDetector.hasChanged(filter, lastValue, value)) {
+				return false;
+			}
+			if (value.getSourceTimestamp() == null) {
+				value.setSourceTimestamp(value.getServerTimestamp());
+			}
+			lastValue = value;
+			queue.add(value);
+		}
+
+		if (mode == MonitoringMode.Reporting
+				&& queued.compareAndSet(false, true)) {
+			subscription.itemChanged(this);
+		}
+		for (final MonitoredItem triggered : triggeredItems) {
+			triggered.trigger();
+		}
+		return true;
+	}
+
+	/**
+	 * called when a triggering item queued a value. if this item is in
+	 * sampling mode, its queued values are reported with the next publish.
+	 */
+	void trigger() {
+		synchronized (this) {
+			if (mode != MonitoringMode.Sampling || queue.isEmpty()) {
+				return;
+			}
+		}
+
+		if (queued.compareAndSet(false, true)) {
+			subscription.itemChanged(this);
+		}
+	}
+
+	/**
+	 * links the item to this triggering item
+	 *
+	 * @param item
+	 * @return false if the link already existed
+	 */
+	public boolean addTriggeredItem(MonitoredItem item) {
+		item.triggeringItems.add(this);
+		return triggeredItems.add(item);
+	}
+
+	/**
+	 * @param item
+	 * @return false if there was no link to the item
+	 */
+	public boolean removeTriggeredItem(MonitoredItem item) {
+		item.triggeringItems.remove(this);
+		return triggeredItems.remove(item);
+	}
+
+	/**
+	 * removes all triggering links from and to this item, called when it is
+	 * deleted
+	 */
+	public void unlinkTriggers() {
+		for (final MonitoredItem triggering : triggeringItems) {
+			triggering.triggeredItems.remove(this);
+		}
+		triggeringItems.clear();
+		for (final MonitoredItem triggered : triggeredItems) {
+			triggered.triggeringItems.remove(this);
+		}
+		triggeredItems.clear();
+	}
+
+	/**
+	 * removes all values waiting for publish and encodes a notification for
+	 * each of them, oldest first. a value which can not be encoded is
+	 * dropped.
+	 *
+	 * @param encoder
+	 * @return number of added notifications
+	 */
+	public int drainNotifications(NotificationEncoder encoder) {
+		// reset first, so that a sample arriving after we took the values
+		// queues the item again
+		queued.set(false);
+		synchronized (this) {
+			int count = 0;
+			DataValue value;
+			while ((value = queue.poll()) != null) {
+				try {
+					encoder.add(clientHandle, value);
+					count++;
+				} catch (final EncodingException e) {
+					LOG.error("could not encode value of item " + id + ": "
+							+ e.getMessage(), e);
+				}
+			}
+			return count;
+		}
 	}
 
 	/**
@@ -0,0 +1,154 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+
+/**
+ * server wide index of all {@link MonitoredItem}s by the attribute they
+ * monitor. if many clients monitor the same node, a value sampled or pushed
+ * once is handed to all their items via {@link #fanOut(Key, DataValue)}
+ * instead of every item reading it on its own.
+ *
+ * lookups do not lock, adding and removing items is synchronized.
+ *
+ */
+public class MonitoredItemIndex {
+
+	private final ConcurrentMap<Key, Set<MonitoredItem>> items;
+
+	public MonitoredItemIndex() {
+		items = new ConcurrentHashMap<Key, Set<MonitoredItem>>();
+	}
+
+	/**
+	 * @param item
+	 * @return true if it is the first item monitoring its attribute
+	 */
+	public synchronized boolean add(MonitoredItem item) {
+		final Key key = Key.of(item);
+		Set<MonitoredItem> keyItems = items.get(key);
+		final boolean first = keyItems == null;
+		if (first) {
+			keyItems = Collections
+					.newSetFromMap(new ConcurrentHashMap<MonitoredItem, Boolean>());
+			items.put(key, keyItems);
+		}
+		keyItems.add(item);
+		return first;
+	}
+
+	/**
+	 * @param item
+	 * @return true if no other item monitors the attribute anymore
+	 */
+	public synchronized boolean remove(MonitoredItem item) {
+		final Key key = Key.of(item);
+		final Set<MonitoredItem> keyItems = items.get(key);
+		if (keyItems == null) {
+			return true;
+		}
+		keyItems.remove(item);
+		if (keyItems.isEmpty()) {
+			items.remove(key);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param key
+	 * @return all items monitoring the attribute, empty if there are none
+	 */
+	public Set<MonitoredItem> get(Key key) {
+		final Set<MonitoredItem> keyItems = items.get(key);
+		if (keyItems == null) {
+			return Collections.emptySet();
+		}
+		return keyItems;
+	}
+
+	/**
+	 * hands the value to all items monitoring the attribute. the same
+	 * DataValue instance is shared by all items, so it is completed before
+	 * and must not be changed afterwards.
+	 *
+	 * @param key
+	 * @param value
+	 * @return number of items which reported the value as a change
+	 */
+	public int fanOut(Key key, DataValue value) {
+		if (value.getSourceTimestamp() == null) {
+			value.setSourceTimestamp(value.getServerTimestamp());
+		}
+
+		int changed = 0;
+		for (final MonitoredItem item : get(key)) {
+			if (item.sample(value)) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	public void clear() {
+		items.clear();
+	}
+
+	/**
+	 * a monitored attribute: NodeId and attribute id
+	 */
+	public static final class Key {
+
+		private final NodeId nodeId;
+		private final UnsignedInteger attributeId;
+
+		public Key(NodeId nodeId, UnsignedInteger attributeId) {
+			this.nodeId = nodeId;
+			this.attributeId = attributeId;
+		}
+
+		public static Key of(MonitoredItem item) {
+			return new Key(item.getNodeId(), item.getAttributeId());
+		}
+
+		public NodeId getNodeId() {
+			return nodeId;
+		}
+
+		public UnsignedInteger getAttributeId() {
+			return attributeId;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (nodeId != null ? nodeId.hashCode() : 0)
+					+ (attributeId != null ? attributeId.hashCode() : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return (nodeId == null ? other.nodeId == null : nodeId
+					.equals(other.nodeId))
+					&& (attributeId == null ? other.attributeId == null
+							: attributeId.equals(other.attributeId));
+		}
+
+		@Override
+		public String toString() {
+			return nodeId + "/" + attributeId;
+		}
+	}
+}
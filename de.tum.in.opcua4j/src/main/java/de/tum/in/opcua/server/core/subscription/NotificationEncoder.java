@@ -0,0 +1,152 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.DataChangeNotification;
+import org.opcfoundation.ua.core.MonitoredItemNotification;
+import org.opcfoundation.ua.encoding.EncodingException;
+import org.opcfoundation.ua.encoding.binary.BinaryEncoder;
+
+/**
+ * encodes {@link MonitoredItemNotification}s into a reusable buffer as soon
+ * as they are taken from their MonitoredItem. to publish, only the framing of
+ * the {@link DataChangeNotification} (array length and empty diagnostic
+ * infos) is written around the already encoded notifications. no
+ * MonitoredItemNotification or DataChangeNotification objects are built and
+ * nothing is encoded twice.
+ *
+ * notifications not taken with {@link #take(int)} stay encoded for the next
+ * response. not thread safe, the {@link Publisher} serializes access.
+ *
+ */
+public class NotificationEncoder {
+
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/**
+	 * a buffer grown beyond this size is given back once it is empty, so a
+	 * single burst does not hold memory forever
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * start position of every encoded notification in the buffer
+	 */
+	private int[] offsets;
+	private int count;
+
+	public NotificationEncoder() {
+		buffer = allocate(INITIAL_CAPACITY);
+		offsets = new int[64];
+	}
+
+	/**
+	 * encodes a notification behind the ones already encoded
+	 *
+	 * @param clientHandle
+	 * @param value
+	 * @throws EncodingException
+	 *             if the value can not be encoded. the notification is not
+	 *             added then.
+	 */
+	public void add(UnsignedInteger clientHandle, DataValue value)
+			throws EncodingException {
+		final int start = buffer.position();
+		while (true) {
+			try {
+				final BinaryEncoder encoder = new BinaryEncoder(buffer);
+				encoder.putUInt32(null, clientHandle);
+				encoder.putDataValue(null, value);
+				break;
+			} catch (final BufferOverflowException e) {
+				buffer.position(start);
+				grow(buffer.capacity() * 2);
+			} catch (final EncodingException e) {
+				buffer.position(start);
+				throw e;
+			}
+		}
+
+		if (count == offsets.length) {
+			final int[] newOffsets = new int[offsets.length * 2];
+			System.arraycopy(offsets, 0, newOffsets, 0, count);
+			offsets = newOffsets;
+		}
+		offsets[count++] = start;
+	}
+
+	/**
+	 * @return number of encoded notifications
+	 */
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * removes the oldest notifications and returns them as an encoded
+	 * DataChangeNotification
+	 *
+	 * @param n
+	 *            number of notifications to take, at most {@link #size()}
+	 * @return
+	 */
+	public ExtensionObject take(int n) {
+		final int taken = Math.min(n, count);
+		final int end = taken < count ? offsets[taken] : buffer.position();
+
+		// MonitoredItems array, DiagnosticInfos array (null)
+		final byte[] body = new byte[4 + end + 4];
+		final ByteBuffer out = ByteBuffer.wrap(body).order(
+				ByteOrder.LITTLE_ENDIAN);
+		out.putInt(taken);
+		out.put(buffer.array(), 0, end);
+		out.putInt(-1);
+
+		removeFirst(taken, end);
+		return new ExtensionObject(DataChangeNotification.BINARY, body);
+	}
+
+	/**
+	 * drops all encoded notifications
+	 */
+	public void clear() {
+		removeFirst(count, buffer.position());
+	}
+
+	private void removeFirst(int n, int end) {
+		final int remaining = buffer.position() - end;
+		if (remaining > 0) {
+			System.arraycopy(buffer.array(), end, buffer.array(), 0, remaining);
+			for (int i = n; i < count; i++) {
+				offsets[i - n] = offsets[i] - end;
+			}
+		}
+		buffer.position(remaining);
+		count -= n;
+
+		if (count == 0 && buffer.capacity() > MAX_RETAINED_CAPACITY) {
+			buffer = allocate(INITIAL_CAPACITY);
+		}
+	}
+
+	private void grow(int capacity) {
+		final ByteBuffer newBuffer = allocate(capacity);
+		newBuffer.put(buffer.array(), 0, buffer.position());
+		buffer = newBuffer;
+	}
+
+	private static ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,204 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.Variant;
+
+/**
+ * fixed size ring buffer for the values of a {@link MonitoredItem} waiting to
+ * be published. the parts of the {@link DataValue}s are kept in preallocated
+ * arrays (timestamps as primitive ticks), so adding a value never allocates.
+ *
+ * if the queue is full, either the oldest or the newest value is discarded
+ * (OPC UA Part 4, 5.12.1.5) and the overflow bit is set in the status code of
+ * the value which took its place. queues of size 1 just replace their value
+ * and never set the overflow bit.
+ *
+ * not thread safe, the owning MonitoredItem synchronizes access.
+ *
+ */
+public class NotificationQueue {
+
+	/**
+	 * InfoType "DataValue" of the StatusCode info bits
+	 */
+	private static final int INFO_TYPE_DATA_VALUE = 0x400;
+
+	/**
+	 * overflow bit, only valid together with INFO_TYPE_DATA_VALUE
+	 */
+	private static final int OVERFLOW = 0x80;
+
+	/**
+	 * largest queue size the server supports
+	 */
+	public static final int MAX_QUEUE_SIZE = 1000;
+
+	/**
+	 * marks a missing timestamp in the tick arrays
+	 */
+	private static final long NO_TIME = Long.MIN_VALUE;
+
+	private final boolean discardOldest;
+
+	private final Variant[] values;
+	private final StatusCode[] statusCodes;
+	private final long[] sourceTimes;
+	private final long[] serverTimes;
+	private final boolean[] overflows;
+
+	/**
+	 * index of the oldest value
+	 */
+	private int head;
+	private int size;
+
+	/**
+	 * @param capacity
+	 *            maximum number of values, at least 1
+	 * @param discardOldest
+	 *            true if the oldest value is discarded when the queue is full,
+	 *            false to discard the newest one
+	 */
+	public NotificationQueue(int capacity, boolean discardOldest) {
+		final int length = Math.max(1, capacity);
+		this.discardOldest = discardOldest;
+		values = new Variant[length];
+		statusCodes = new StatusCode[length];
+		sourceTimes = new long[length];
+		serverTimes = new long[length];
+		overflows = new boolean[length];
+	}
+
+	/**
+	 * revises the queue size requested by the client to a value between 1 and
+	 * {@link #MAX_QUEUE_SIZE}
+	 *
+	 * @param requested
+	 * @return
+	 */
+	public static UnsignedInteger reviseQueueSize(UnsignedInteger requested) {
+		if (requested == null || requested.longValue() < 1) {
+			return new UnsignedInteger(1);
+		}
+		if (requested.longValue() > MAX_QUEUE_SIZE) {
+			return new UnsignedInteger(MAX_QUEUE_SIZE);
+		}
+		return requested;
+	}
+
+	/**
+	 * adds the value. if the queue is full, a value is discarded according to
+	 * discardOldest.
+	 *
+	 * @param value
+	 */
+	public void add(DataValue value) {
+		final int capacity = values.length;
+		if (capacity == 1) {
+			set(head, value, false);
+			size = 1;
+			return;
+		}
+
+		if (size < capacity) {
+			set(index(size), value, false);
+			size++;
+		} else if (discardOldest) {
+			// overwrite the oldest, the next one is the oldest now
+			set(head, value, false);
+			head = index(1);
+			overflows[head] = true;
+		} else {
+			// replace the newest
+			set(index(size - 1), value, true);
+		}
+	}
+
+	/**
+	 * removes the oldest value
+	 *
+	 * @return the oldest value or null if the queue is empty
+	 */
+	public DataValue poll() {
+		if (size == 0) {
+			return null;
+		}
+
+		final DataValue value = new DataValue();
+		value.setValue(values[head]);
+		value.setStatusCode(overflows[head] ? withOverflow(statusCodes[head])
+				: statusCodes[head]);
+		value.setSourceTimestamp(toDateTime(sourceTimes[head]));
+		value.setServerTimestamp(toDateTime(serverTimes[head]));
+
+		// do not keep references to values we do not need anymore
+		values[head] = null;
+		statusCodes[head] = null;
+
+		head = index(1);
+		size--;
+		return value;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	public boolean isDiscardOldest() {
+		return discardOldest;
+	}
+
+	public void clear() {
+		while (size > 0) {
+			values[head] = null;
+			statusCodes[head] = null;
+			head = index(1);
+			size--;
+		}
+		head = 0;
+	}
+
+	private void set(int i, DataValue value, boolean overflow) {
+		values[i] = value.getValue();
+		statusCodes[i] = value.getStatusCode();
+		sourceTimes[i] = toTicks(value.getSourceTimestamp());
+		serverTimes[i] = toTicks(value.getServerTimestamp());
+		overflows[i] = overflow;
+	}
+
+	/**
+	 * @param offset
+	 *            offset from head
+	 * @return index in the arrays
+	 */
+	private int index(int offset) {
+		return (head + offset) % values.length;
+	}
+
+	private static StatusCode withOverflow(StatusCode statusCode) {
+		final int bits = statusCode != null ? statusCode.getValueAsIntBits()
+				: 0;
+		// bad status codes have the highest bit set, so go via long
+		return new StatusCode(new UnsignedInteger(
+				(bits | INFO_TYPE_DATA_VALUE | OVERFLOW) & 0xFFFFFFFFL));
+	}
+
+	private static long toTicks(DateTime time) {
+		return time != null ? time.getValue() : NO_TIME;
+	}
+
+	private static DateTime toDateTime(long ticks) {
+		return ticks != NO_TIME ? new DateTime(ticks) : null;
+	}
+}
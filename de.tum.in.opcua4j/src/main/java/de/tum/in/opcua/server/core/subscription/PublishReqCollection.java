@@ -1,63 +1,244 @@
 package de.tum.in.opcua.server.core.subscription;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.NodeId;
-import org.opcfoundation.ua.core.PublishRequest;
-import org.opcfoundation.ua.core.PublishResponse;
-import org.opcfoundation.ua.transport.EndpointServiceRequest;
+import org.opcfoundation.ua.core.StatusCodes;
 
 /**
  * holds publishRequests per session. PublishRequests can be used for any
  * Subscription in the same context, therefore they are collected by session and
  * taken one after an other.
- * 
+ *
  * Several Publisher (from different Subscriptions) concur for PublishRequests
- * to send their notifications to the client. Here we have to enforce priority
- * which Subscription is allowed to send first. This is not implemented now.
- * 
+ * to send their notifications to the client. a {@link Publisher} with
+ * something to send registers itself as ready for its session and the
+ * requests are handed to the ready Publishers in this order:
+ * <ol>
+ * <li>Publishers whose keep-alive is due, so that their Subscription does not
+ * expire</li>
+ * <li>Publishers of Subscriptions with a higher priority</li>
+ * <li>Publishers which are waiting longer (round-robin among equal priority,
+ * because a served Publisher registers again at the end)</li>
+ * </ol>
+ *
+ * nobody ever waits for a PublishRequest here. a ready Publisher which does
+ * not get a request right away stays registered as "late", and the next
+ * PublishRequest arriving for that session is immediately used to complete
+ * the first late Publisher. neither the publishing threads nor the stack
+ * threads delivering requests wait for each other; the ordered queue of late
+ * Publishers only takes a short lock while an entry is added or taken.
+ *
  * @author harald
  *
  */
 public class PublishReqCollection {
 
+	private static final Logger LOG = Logger
+			.getLogger(PublishReqCollection.class);
+
+	/**
+	 * maximum number of pending PublishRequests per session. if a client sends
+	 * more, the oldest one is answered with Bad_TooManyPublishRequests.
+	 */
 	private final int queueCapacity = 20;
 
-	private final Map<NodeId, BlockingQueue<EndpointServiceRequest<PublishRequest, PublishResponse>>> publishRequestsBySession;
+	private final ConcurrentMap<NodeId, SessionQueue> publishRequestsBySession;
 
 	/**
-	 * @param queue
+	 * orders late Publishers of equal precedence by their arrival
 	 */
+	private final AtomicLong lateCounter = new AtomicLong();
+
 	public PublishReqCollection() {
-		// queue = new
-		// ArrayBlockingQueue<EndpointServiceRequest<PublishRequest,PublishResponse>>(capacity);
-		publishRequestsBySession = new HashMap<NodeId, BlockingQueue<EndpointServiceRequest<PublishRequest, PublishResponse>>>();
+		publishRequestsBySession = new ConcurrentHashMap<NodeId, SessionQueue>();
 	}
 
-	public synchronized void offer(NodeId sessionId,
-			EndpointServiceRequest<PublishRequest, PublishResponse> req) {
-		BlockingQueue<EndpointServiceRequest<PublishRequest, PublishResponse>> queue = publishRequestsBySession
-				.get(sessionId);
-		if (queue == null) {
-			queue = new ArrayBlockingQueue<EndpointServiceRequest<PublishRequest, PublishResponse>>(
-					queueCapacity);
-			publishRequestsBySession.put(sessionId, queue);
+	/**
+	 * stores the request for later use. if a Publisher of the session is
+	 * late, it is completed with this request right away.
+	 *
+	 * @param sessionId
+	 * @param req
+	 */
+	public void offer(NodeId sessionId, QueuedPublishRequest req) {
+		final SessionQueue queue = getSessionQueue(sessionId);
+
+		queue.requests.offer(req);
+		if (queue.size.incrementAndGet() > queueCapacity) {
+			final QueuedPublishRequest oldest = poll(queue);
+			if (oldest != null) {
+				LOG.debug("too many publish requests for session " + sessionId);
+				oldest.sendError(StatusCodes.Bad_TooManyPublishRequests);
+			}
 		}
 
-		queue.offer(req);
+		completeLatePublishers(queue);
 	}
 
-	public EndpointServiceRequest<PublishRequest, PublishResponse> take(
-			NodeId sessionId) throws InterruptedException {
-		final BlockingQueue<EndpointServiceRequest<PublishRequest, PublishResponse>> queue = publishRequestsBySession
-				.get(sessionId);
+	/**
+	 * returns the oldest pending PublishRequest of the session or null if
+	 * there is none. never waits for a request to arrive.
+	 *
+	 * @param sessionId
+	 * @return
+	 */
+	public QueuedPublishRequest poll(NodeId sessionId) {
+		final SessionQueue queue = publishRequestsBySession.get(sessionId);
 		if (queue != null) {
-			return queue.take();
+			return poll(queue);
 		}
 		return null;
 	}
 
+	/**
+	 * registers a {@link Publisher} which has something to send. it is called
+	 * back by {@link Publisher#publishLate()} as soon as a request is
+	 * available and no Publisher with precedence is waiting; possibly right
+	 * away in the calling thread.
+	 *
+	 * @param sessionId
+	 * @param publisher
+	 * @param priority
+	 *            priority of the Subscription of the Publisher
+	 * @param keepAliveDue
+	 *            true if the Publisher has to send a keep-alive
+	 */
+	void addLatePublisher(NodeId sessionId, Publisher publisher,
+			int priority, boolean keepAliveDue) {
+		final SessionQueue queue = getSessionQueue(sessionId);
+		queue.latePublishers.offer(new LatePublisher(publisher, priority,
+				keepAliveDue, lateCounter.incrementAndGet()));
+
+		// a request may already be available
+		completeLatePublishers(queue);
+	}
+
+	/**
+	 * hands the pending requests to late Publishers as long as both exist.
+	 * {@link Publisher#publishLate()} only publishes if the Publisher is
+	 * still late, so stale entries are skipped. a Publisher whose request was
+	 * taken by another thread in the meantime is put back with its original
+	 * precedence, so a due keep-alive is not pushed to the back.
+	 *
+	 * @param queue
+	 */
+	private void completeLatePublishers(SessionQueue queue) {
+		while (!queue.requests.isEmpty()) {
+			final LatePublisher late = queue.latePublishers.poll();
+			if (late == null) {
+				break;
+			}
+			if (late.publisher.publishLate()) {
+				queue.latePublishers.offer(late);
+			}
+		}
+	}
+
+	/**
+	 * forgets the session. its pending PublishRequests are answered with
+	 * Bad_SessionClosed.
+	 *
+	 * @param sessionId
+	 */
+	public void removeSession(NodeId sessionId) {
+		final SessionQueue queue = publishRequestsBySession.remove(sessionId);
+		if (queue == null) {
+			return;
+		}
+
+		queue.latePublishers.clear();
+		QueuedPublishRequest req;
+		while ((req = poll(queue)) != null) {
+			req.sendError(StatusCodes.Bad_SessionClosed);
+		}
+	}
+
+	/**
+	 * forgets the session if it has no pending PublishRequests. a session
+	 * still in use gets a new queue with its next request.
+	 *
+	 * @param sessionId
+	 */
+	void removeIdleSession(NodeId sessionId) {
+		final SessionQueue queue = publishRequestsBySession.get(sessionId);
+		if (queue != null && queue.requests.isEmpty()) {
+			publishRequestsBySession.remove(sessionId, queue);
+		}
+	}
+
+	private QueuedPublishRequest poll(SessionQueue queue) {
+		final QueuedPublishRequest req = queue.requests.poll();
+		if (req != null) {
+			queue.size.decrementAndGet();
+		}
+		return req;
+	}
+
+	private SessionQueue getSessionQueue(NodeId sessionId) {
+		SessionQueue queue = publishRequestsBySession.get(sessionId);
+		if (queue == null) {
+			final SessionQueue newQueue = new SessionQueue();
+			queue = publishRequestsBySession.putIfAbsent(sessionId, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * pending PublishRequests and late Publishers of one session
+	 */
+	private static class SessionQueue {
+
+		private final Queue<QueuedPublishRequest> requests = new ConcurrentLinkedQueue<QueuedPublishRequest>();
+
+		/**
+		 * size of requests, because {@link ConcurrentLinkedQueue#size()} is
+		 * not a constant time operation
+		 */
+		private final AtomicInteger size = new AtomicInteger();
+
+		private final Queue<LatePublisher> latePublishers = new PriorityBlockingQueue<LatePublisher>();
+	}
+
+	/**
+	 * a Publisher waiting for a PublishRequest, ordered by precedence
+	 */
+	private static class LatePublisher implements Comparable<LatePublisher> {
+
+		private final Publisher publisher;
+		private final int priority;
+		private final boolean keepAliveDue;
+		private final long arrival;
+
+		LatePublisher(Publisher publisher, int priority, boolean keepAliveDue,
+				long arrival) {
+			this.publisher = publisher;
+			this.priority = priority;
+			this.keepAliveDue = keepAliveDue;
+			this.arrival = arrival;
+		}
+
+		@Override
+		public int compareTo(LatePublisher other) {
+			if (keepAliveDue != other.keepAliveDue) {
+				return keepAliveDue ? -1 : 1;
+			}
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return arrival < other.arrival ? -1 : (arrival == other.arrival ? 0
+					: 1);
+		}
+	}
+
 }
@@ -1,47 +1,84 @@
 package de.tum.in.opcua.server.core.subscription;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
-import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.ExtensionObject;
-import org.opcfoundation.ua.builtintypes.StatusCode;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
-import org.opcfoundation.ua.builtintypes.Variant;
-import org.opcfoundation.ua.core.DataChangeNotification;
-import org.opcfoundation.ua.core.MonitoredItemNotification;
 import org.opcfoundation.ua.core.NotificationMessage;
-import org.opcfoundation.ua.core.PublishRequest;
 import org.opcfoundation.ua.core.PublishResponse;
-import org.opcfoundation.ua.core.SubscriptionAcknowledgement;
-import org.opcfoundation.ua.encoding.EncodingException;
-import org.opcfoundation.ua.transport.EndpointServiceRequest;
-
-import de.tum.in.opcua.server.handler.ServiceHandlerBase;
 
 public class Publisher {
 
+	private static final Logger LOG = Logger.getLogger(Publisher.class);
+
 	private final Subscription subscription;
 	private final PublishReqCollection publishRequests;
 
-	private final ScheduledExecutorService scheduledThreadPool = Executors
-			.newScheduledThreadPool(1);
+	/**
+	 * is told when the Subscription expired
+	 */
+	private final SubscriptionManager subscriptionManager;
+
+	/**
+	 * server wide timer shared by all Publishers
+	 */
+	private final PublishingScheduler scheduler;
 	private ScheduledFuture<?> schedule;
-	private int sequenceNumber = 0;
+	private int sequenceNumber = 1;
+
+	/**
+	 * true while the publishing timer is running
+	 */
+	private volatile boolean active;
+
+	/**
+	 * set if a publishing cycle did not find a PublishRequest. the next
+	 * request of the session is then used to publish immediately.
+	 */
+	private final AtomicBoolean late = new AtomicBoolean();
+
+	private final Object publishLock = new Object();
+
+	/**
+	 * encoded notifications not yet sent, including the ones which did not
+	 * fit into the last PublishResponse. guarded by the publishLock.
+	 */
+	private final NotificationEncoder pendingNotifications = new NotificationEncoder();
+
+	/**
+	 * true if pendingNotifications is not empty. readable without the
+	 * publishLock.
+	 */
+	private volatile boolean morePending;
+
+	/**
+	 * publishing cycles since the last response was sent. a keep-alive is
+	 * sent when it reaches {@link Subscription#getMaxKeepAliveCount()}.
+	 */
+	private volatile int keepAliveCounter;
+
+	/**
+	 * publishing cycles without a PublishRequest being available to send a
+	 * message. the Subscription expires when it reaches
+	 * {@link Subscription#getLifetimeCount()}.
+	 */
+	private final AtomicInteger lifetimeCounter = new AtomicInteger();
 
 	/**
 	 * @param subscription
 	 */
 	public Publisher(Subscription subscription,
-			PublishReqCollection publishRequests) {
+			PublishReqCollection publishRequests,
+			PublishingScheduler scheduler,
+			SubscriptionManager subscriptionManager) {
 		this.subscription = subscription;
 		this.publishRequests = publishRequests;
+		this.scheduler = scheduler;
+		this.subscriptionManager = subscriptionManager;
 
 		configure();
 	}
@@ -50,140 +87,256 @@ public class Publisher {
 	 * configures timeouts, queuesizes, ... based on the Subscription. If values
 	 * of the Subscription change, this method has to be called to adapt
 	 * publishinginterval and so on to the new values.
+	 *
+	 * the timer also runs if publishing is disabled, because keep-alives are
+	 * sent and the lifetime is counted anyway.
 	 */
-	public void configure() {
-		if (subscription.isPublishingEnabled()) {
-			stopPublishing();
-			startPublishing();
-		} else {
-			stopPublishing();
-		}
+	public synchronized void configure() {
+		stopPublishing();
+		startPublishing();
 	}
 
 	private void startPublishing() {
-		schedule = scheduledThreadPool.scheduleWithFixedDelay(
-				new PublishTask(), 0,
-				(long) subscription.getPublishingInterval(),
-				TimeUnit.MILLISECONDS);
+		active = true;
+		schedule = scheduler.schedule(new PublishTask(),
+				(long) subscription.getPublishingInterval());
 	}
 
-	public void stopPublishing() {
+	public synchronized void stopPublishing() {
+		active = false;
 		if (schedule != null && !schedule.isCancelled()) {
 			schedule.cancel(false);
 		}
 	}
 
-	class PublishTask implements Runnable {
+	/**
+	 * one publishing cycle: if there are notifications or a keep-alive is
+	 * due, we register as ready at the {@link PublishReqCollection}, which
+	 * decides by priority when we get a PublishRequest. we do not wait for
+	 * it; if no request is available we stay late and the next incoming
+	 * PublishRequest completes this cycle. every cycle we are late counts
+	 * towards the lifetime of the Subscription.
+	 */
+	private void publishCycle() {
+		if (!late.get()) {
+			final boolean notificationsAvailable = subscription
+					.isPublishingEnabled()
+					&& (subscription.hasChangedItems() || morePending);
+			if (!notificationsAvailable
+					&& ++keepAliveCounter < subscription.getMaxKeepAliveCount()) {
+				// nothing to send, so we do not use up a PublishRequest
+				return;
+			}
 
-		private final Logger LOG = Logger.getLogger(PublishTask.class);
+			LOG.info("preparing notification for subscription "
+					+ subscription.getId());
+			markLate(!notificationsAvailable);
+		}
 
-		@Override
-		public void run() {
-			try {
-				LOG.info("preparing notification for subscription "
-						+ subscription.getId());
-
-				EndpointServiceRequest<PublishRequest, PublishResponse> serviceReq;
-				try {
-					serviceReq = publishRequests.take(subscription
-							.getSessionId());
-					if (serviceReq == null) {
-						// TODO what to do here? we cannot send a message
-						// because there is no publish request we can use
-						return;
-					}
-					LOG.info("got publishing request");
-				} catch (final InterruptedException e) {
-					LOG.error(e.getMessage(), e);
-					// TODO what to do here? we cannot send a message because
-					// there is no publish request we can use
-					return;
-				}
+		if (late.get()
+				&& lifetimeCounter.incrementAndGet() >= subscription
+						.getLifetimeCount()) {
+			expire();
+		}
+	}
 
-				final PublishRequest req = serviceReq.getRequest();
-				final PublishResponse resp = new PublishResponse();
-
-				/*
-				 * clear resources for acknowledged notifications from the last
-				 * publish response and create results StausCodes
-				 */
-				final SubscriptionAcknowledgement[] acks = req
-						.getSubscriptionAcknowledgements();
-				StatusCode[] results = null;
-				if (acks != null) {
-					results = new StatusCode[acks.length];
-					int i = 0;
-					for (final SubscriptionAcknowledgement ack : acks) {
-						// TODO clear acknowledged Notification
-
-						results[i++] = StatusCode.GOOD;
-					}
-				}
+	/**
+	 * the client did not send PublishRequests for lifetimeCount publishing
+	 * cycles. the Subscription is deleted and all its resources are freed.
+	 */
+	private void expire() {
+		LOG.info("subscription " + subscription.getId() + " expired");
+		stopPublishing();
+		subscriptionManager.expireSubscription(subscription);
+	}
+
+	/**
+	 * called by the {@link PublishReqCollection} when a PublishRequest is
+	 * available for us. does nothing if we are not late anymore.
+	 *
+	 * @return true if we are still late because another Publisher of the
+	 *         session took the request first. the caller registers us again
+	 *         with our original precedence.
+	 */
+	boolean publishLate() {
+		if (!active || !late.get()) {
+			return false;
+		}
+
+		final QueuedPublishRequest serviceReq = publishRequests
+				.poll(subscription.getSessionId());
+		if (serviceReq == null) {
+			// another Publisher of the session was faster
+			return true;
+		}
+
+		// only the holder of our single registration clears the flag
+		late.set(false);
+		LOG.debug("completing late publish for subscription "
+				+ subscription.getId());
+		publish(serviceReq);
+		return false;
+	}
+
+	/**
+	 * registers us for the next available PublishRequest. must not be called
+	 * while holding the publishLock, see {@link #registerLate(boolean)}.
+	 *
+	 * @param keepAliveDue
+	 *            true if we have to send a keep-alive, which takes precedence
+	 *            over other Publishers
+	 */
+	private void markLate(boolean keepAliveDue) {
+		if (late.compareAndSet(false, true)) {
+			registerLate(keepAliveDue);
+		}
+	}
 
-				resp.setResults(results);
-
-				/*
-				 * create new Notifications message for this publishing-cycle
-				 */
-				resp.setSubscriptionId(new UnsignedInteger(subscription.getId()));
-				resp.setMoreNotifications(false);
-				final NotificationMessage notificatioMsg = new NotificationMessage();
-				notificatioMsg.setPublishTime(new DateTime());
-				notificatioMsg.setSequenceNumber(new UnsignedInteger(
-						sequenceNumber));
-
-				// TODO build notification message
-				final ExtensionObject[] dataArray = new ExtensionObject[1];
-				final DataChangeNotification dataChangeNotification = new DataChangeNotification();
-
-				try {
-					final List<MonitoredItemNotification> itemNotifications = new ArrayList<MonitoredItemNotification>();
-
-					/*
-					 * we hard code notification for every item in the session.
-					 * 
-					 * TODO get notification for every monitored item and add it
-					 * here
-					 */
-					LOG.info("adding monitored items: "
-							+ subscription.getMonitoredItems().size());
-					for (final MonitoredItem item : subscription
-							.getMonitoredItems().values()) {
-
-						// TODO get new values from MonitoredItem.
-
-						final MonitoredItemNotification notification = new MonitoredItemNotification();
-						notification.setClientHandle(item.getClientHandle());
-						notification.setValue(new DataValue(new Variant(23.5)));
-						itemNotifications.add(notification);
-					}
-
-					dataChangeNotification
-							.setMonitoredItems(itemNotifications
-									.toArray(new MonitoredItemNotification[itemNotifications
-											.size()]));
-					dataArray[0] = ExtensionObject
-							.binaryEncode(dataChangeNotification);
-				} catch (final EncodingException e) {
-					LOG.error(e.getMessage(), e);
-					// TODO send ERROR CODE
+	/**
+	 * adds us to the late Publishers of the session after the late flag was
+	 * set. the {@link PublishReqCollection} may complete other late
+	 * Publishers of the session right away in this thread, which take their
+	 * own publishLock. so we must not hold ours, otherwise two Publishers of
+	 * a session running out of requests at the same time deadlock.
+	 */
+	private void registerLate(boolean keepAliveDue) {
+		LOG.debug("subscription " + subscription.getId()
+				+ " waits for a publish request");
+		publishRequests.addLatePublisher(subscription.getSessionId(), this,
+				subscription.getPriority(), keepAliveDue);
+	}
+
+	/**
+	 * publishes the pending notifications on the given request. if they do
+	 * not fit into one response (see
+	 * {@link Subscription#getMaxNotificationsPerPublish()}), further queued
+	 * PublishRequests of the session are used back-to-back. if no more
+	 * requests are queued, we are late and the rest is sent with the next
+	 * request arriving.
+	 *
+	 * may be called from a publishing thread or from a stack thread delivering
+	 * a PublishRequest, hence it is serialized by the publishLock. if we run
+	 * out of requests, we only set the late flag while holding the lock and
+	 * register as late after releasing it.
+	 *
+	 * @param serviceReq
+	 */
+	private void publish(QueuedPublishRequest serviceReq) {
+		boolean becameLate = false;
+		synchronized (publishLock) {
+			QueuedPublishRequest next = serviceReq;
+			while (next != null && publishMessage(next)) {
+				next = publishRequests.poll(subscription.getSessionId());
+				if (next == null) {
+					becameLate = late.compareAndSet(false, true);
 				}
-				notificatioMsg.setNotificationData(dataArray);
+			}
+		}
+		if (becameLate) {
+			registerLate(false);
+		}
+	}
 
-				LOG.info("publishing...");
+	/**
+	 * builds one PublishResponse and sends it on the given request.
+	 *
+	 * @param serviceReq
+	 * @return true if there are more notifications than fitted into the
+	 *         response
+	 */
+	private boolean publishMessage(QueuedPublishRequest serviceReq) {
+		try {
+			final PublishResponse resp = new PublishResponse();
 
-				resp.setResponseHeader(ServiceHandlerBase.buildRespHeader(req));
-				serviceReq.sendResponse(resp);
+			// the acknowledgements of the request were already processed by
+			// the SubscriptionManager, their results are set when sending
 
-				LOG.info("published");
+			/*
+			 * create new Notifications message for this publishing-cycle
+			 */
+			resp.setSubscriptionId(new UnsignedInteger(subscription.getId()));
+			final NotificationMessage notificatioMsg = new NotificationMessage();
+			notificatioMsg.setPublishTime(new DateTime());
+			notificatioMsg.setSequenceNumber(new UnsignedInteger(
+					sequenceNumber));
 
-				// sequencenumber is not allowed to be negative; but we may be
-				// negative because of an underflow
-				if (++sequenceNumber < 0) {
-					sequenceNumber = 0;
+			// collect the values of all changed items behind the ones left
+			// over from the last response. if publishing is disabled, only a
+			// keep-alive is sent.
+			if (subscription.isPublishingEnabled()) {
+				MonitoredItem item;
+				while ((item = subscription.pollChangedItem()) != null) {
+					item.drainNotifications(pendingNotifications);
 				}
-			} catch (final Exception e) {
-				LOG.error(e.getMessage(), e);
+			}
+
+			final int max = subscription.getMaxNotificationsPerPublish();
+			final int available = subscription.isPublishingEnabled() ? pendingNotifications
+					.size() : 0;
+			final int count = max > 0 ? Math.min(max, available) : available;
+
+			// the notifications are already encoded, only the
+			// DataChangeNotification around them is written here
+			ExtensionObject[] dataArray = new ExtensionObject[0];
+			if (count > 0) {
+				dataArray = new ExtensionObject[] { pendingNotifications
+						.take(count) };
+			}
+			final boolean moreNotifications = count < available;
+			morePending = !pendingNotifications.isEmpty();
+			resp.setMoreNotifications(moreNotifications);
+
+			LOG.debug("publishing " + count + " notifications of subscription "
+					+ subscription.getId() + ", "
+					+ pendingNotifications.size() + " left");
+			notificatioMsg.setNotificationData(dataArray);
+			resp.setNotificationMessage(notificatioMsg);
+
+			// keep the message until the client acknowledges it. keep-alive
+			// messages are never kept.
+			final RetransmissionQueue retransmissionQueue = subscription
+					.getRetransmissionQueue();
+			if (dataArray.length > 0) {
+				retransmissionQueue.add(notificatioMsg);
+			}
+			resp.setAvailableSequenceNumbers(retransmissionQueue
+					.getAvailableSequenceNumbers());
+
+			LOG.info("publishing...");
+
+			serviceReq.sendResponse(resp);
+			keepAliveCounter = 0;
+			lifetimeCounter.set(0);
+
+			LOG.info("published");
+
+			// a message without notifications does not consume the
+			// sequencenumber. sequencenumbers start with 1 and are not
+			// allowed to be negative; but we may be negative because of an
+			// underflow
+			if (dataArray.length > 0 && ++sequenceNumber <= 0) {
+				sequenceNumber = 1;
+			}
+
+			return moreNotifications;
+		} catch (final Exception e) {
+			LOG.error(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	class PublishTask implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				publishCycle();
+			} catch (final Throwable e) {
+				// an exception would cancel the periodic task and the
+				// subscription would silently stop publishing
+				LOG.error("publishing cycle of subscription "
+						+ subscription.getId() + " failed: " + e.getMessage(),
+						e);
 			}
 		}
 
@@ -0,0 +1,118 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * server wide timer for the publishing cycles of all {@link Subscription}s.
+ *
+ * instead of one thread per {@link Publisher}, a small and fixed set of
+ * threads (one per available core) runs the publishing timers of every
+ * Subscription. tasks scheduled here must never block, otherwise they delay
+ * the publishing cycles of all other Subscriptions sharing the same threads.
+ *
+ * the scheduler is owned by the {@link SubscriptionManager} and is shut down
+ * together with it. the {@link SamplingEngine} uses a separate instance, so
+ * that slow reads of a backend never delay the publishing cycles.
+ *
+ */
+public class PublishingScheduler {
+
+	private static final Logger LOG = Logger
+			.getLogger(PublishingScheduler.class);
+
+	/**
+	 * smallest period (in milliseconds) a task can be scheduled with
+	 */
+	private static final long MIN_INTERVAL = 1;
+
+	/**
+	 * time to wait for running tasks when the scheduler is shut down
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * creates a scheduler with one thread per available core
+	 */
+	public PublishingScheduler() {
+		this("opcua-publisher", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threadName
+	 *            prefix of the names of the created threads
+	 * @param threads
+	 *            number of threads executing the scheduled tasks
+	 */
+	public PublishingScheduler(String threadName, int threads) {
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+				new PublishingThreadFactory(threadName));
+		// cancelled publishing timers should not stay in the queue until
+		// their next due date
+		executor.setRemoveOnCancelPolicy(true);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * runs the given task periodically every interval milliseconds until the
+	 * returned {@link ScheduledFuture} is cancelled.
+	 *
+	 * @param task
+	 * @param interval
+	 *            period in milliseconds
+	 * @return
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long interval) {
+		final long period = Math.max(MIN_INTERVAL, interval);
+		return executor.scheduleAtFixedRate(task, period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * stops all scheduled tasks and waits a moment for running ones to finish
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT,
+					TimeUnit.MILLISECONDS)) {
+				LOG.warn("scheduler threads did not terminate in time");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * creates named daemon threads, so that a forgotten
+	 * {@link PublishingScheduler#shutdown()} does not keep the JVM alive.
+	 */
+	private static class PublishingThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		PublishingThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
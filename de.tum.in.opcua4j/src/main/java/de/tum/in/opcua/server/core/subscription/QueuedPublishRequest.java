@@ -0,0 +1,73 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.PublishRequest;
+import org.opcfoundation.ua.core.PublishResponse;
+import org.opcfoundation.ua.transport.EndpointServiceRequest;
+
+import de.tum.in.opcua.server.handler.ServiceHandlerBase;
+
+/**
+ * a PublishRequest waiting in the {@link PublishReqCollection}. the
+ * acknowledgements of the request are processed as soon as it arrives, their
+ * results are kept here until the request is answered.
+ *
+ */
+public class QueuedPublishRequest {
+
+	private final EndpointServiceRequest<PublishRequest, PublishResponse> serviceReq;
+
+	/**
+	 * one result per SubscriptionAcknowledgement of the request
+	 */
+	private final StatusCode[] ackResults;
+
+	/**
+	 * @param serviceReq
+	 * @param ackResults
+	 */
+	public QueuedPublishRequest(
+			EndpointServiceRequest<PublishRequest, PublishResponse> serviceReq,
+			StatusCode[] ackResults) {
+		this.serviceReq = serviceReq;
+		this.ackResults = ackResults;
+	}
+
+	public PublishRequest getRequest() {
+		return serviceReq.getRequest();
+	}
+
+	/**
+	 * @return the ackResults
+	 */
+	public StatusCode[] getAckResults() {
+		return ackResults;
+	}
+
+	/**
+	 * sets the acknowledgement results and the response header and sends the
+	 * response
+	 *
+	 * @param resp
+	 */
+	public void sendResponse(PublishResponse resp) {
+		resp.setResults(ackResults);
+		resp.setResponseHeader(ServiceHandlerBase
+				.buildRespHeader(getRequest()));
+		serviceReq.sendResponse(resp);
+	}
+
+	/**
+	 * answers the request with the given error
+	 *
+	 * @param statusCode
+	 */
+	public void sendError(UnsignedInteger statusCode) {
+		final PublishResponse resp = new PublishResponse();
+		resp.setResults(ackResults);
+		resp.setResponseHeader(ServiceHandlerBase.buildErrRespHeader(
+				getRequest(), statusCode));
+		serviceReq.sendResponse(resp);
+	}
+}
@@ -0,0 +1,193 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.NotificationMessage;
+
+/**
+ * the sent NotificationMessages of a {@link Subscription} which were not
+ * acknowledged by the client yet. the client can request them again with the
+ * Republish service.
+ *
+ * the queue is bounded twice: by its own capacity and by a limit shared with
+ * all other Subscriptions of the session, see {@link SessionHistory}. if the
+ * capacity is exceeded, the oldest message of this queue is dropped; if the
+ * session limit is exceeded, the oldest message of the whole session is
+ * dropped, whichever queue it belongs to. so a client which never
+ * acknowledges can not make the server keep an unbounded history, no matter
+ * how many Subscriptions it creates.
+ *
+ * all queues of a session are guarded by the lock of their
+ * {@link SessionHistory}.
+ *
+ */
+public class RetransmissionQueue {
+
+	private final int capacity;
+
+	private final SessionHistory session;
+
+	/**
+	 * messages by their sequence number, oldest first
+	 */
+	private final LinkedHashMap<Integer, NotificationMessage> messages;
+
+	/**
+	 * @param capacity
+	 *            maximum number of messages kept for the Subscription
+	 * @param session
+	 *            shared by all queues of a session
+	 */
+	public RetransmissionQueue(int capacity, SessionHistory session) {
+		this.capacity = capacity;
+		this.session = session;
+		messages = new LinkedHashMap<Integer, NotificationMessage>();
+	}
+
+	/**
+	 * keeps the sent message until it is acknowledged
+	 *
+	 * @param message
+	 */
+	public void add(NotificationMessage message) {
+		final int sequenceNumber = message.getSequenceNumber().intValue();
+		synchronized (session) {
+			if (messages.put(sequenceNumber, message) == null) {
+				session.sent.add(new SentMessage(this, sequenceNumber));
+			}
+
+			while (messages.size() > capacity) {
+				final Iterator<Integer> it = messages.keySet().iterator();
+				remove(it.next());
+			}
+			while (session.sent.size() > session.limit) {
+				final SentMessage oldest = session.sent.iterator().next();
+				oldest.queue.remove(oldest.sequenceNumber);
+			}
+		}
+	}
+
+	/**
+	 * releases the message with the given sequence number
+	 *
+	 * @param sequenceNumber
+	 * @return false if there is no such message
+	 */
+	public boolean acknowledge(int sequenceNumber) {
+		synchronized (session) {
+			return remove(sequenceNumber);
+		}
+	}
+
+	/**
+	 * @param sequenceNumber
+	 * @return the message with the given sequence number or null if it is not
+	 *         available (anymore)
+	 */
+	public NotificationMessage get(int sequenceNumber) {
+		synchronized (session) {
+			return messages.get(sequenceNumber);
+		}
+	}
+
+	/**
+	 * @return sequence numbers of all kept messages, oldest first
+	 */
+	public UnsignedInteger[] getAvailableSequenceNumbers() {
+		synchronized (session) {
+			final UnsignedInteger[] sequenceNumbers = new UnsignedInteger[messages
+					.size()];
+			int i = 0;
+			for (final Integer sequenceNumber : messages.keySet()) {
+				sequenceNumbers[i++] = new UnsignedInteger(sequenceNumber);
+			}
+			return sequenceNumbers;
+		}
+	}
+
+	public int size() {
+		synchronized (session) {
+			return messages.size();
+		}
+	}
+
+	/**
+	 * drops all messages, e.g. when the Subscription is deleted
+	 */
+	public void clear() {
+		synchronized (session) {
+			for (final Iterator<Map.Entry<Integer, NotificationMessage>> it = messages
+					.entrySet().iterator(); it.hasNext();) {
+				session.sent.remove(new SentMessage(this, it.next().getKey()));
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * has to be called while holding the lock of the session
+	 */
+	private boolean remove(int sequenceNumber) {
+		if (messages.remove(sequenceNumber) != null) {
+			session.sent.remove(new SentMessage(this, sequenceNumber));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * the messages kept for all Subscriptions of a session, in the order they
+	 * were sent
+	 */
+	public static class SessionHistory {
+
+		private final int limit;
+
+		private final LinkedHashSet<SentMessage> sent = new LinkedHashSet<SentMessage>();
+
+		/**
+		 * @param limit
+		 *            maximum number of messages kept for the session
+		 */
+		public SessionHistory(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * @return number of messages kept for the session
+		 */
+		public synchronized int size() {
+			return sent.size();
+		}
+	}
+
+	private static final class SentMessage {
+
+		private final RetransmissionQueue queue;
+		private final int sequenceNumber;
+
+		SentMessage(RetransmissionQueue queue, int sequenceNumber) {
+			this.queue = queue;
+			this.sequenceNumber = sequenceNumber;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SentMessage)) {
+				return false;
+			}
+			final SentMessage other = (SentMessage) obj;
+			return queue == other.queue
+					&& sequenceNumber == other.sequenceNumber;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(queue) + sequenceNumber;
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.ReadValueId;
+
+import de.tum.in.opcua.server.annotation.MonitorItemManagable;
+import de.tum.in.opcua.server.core.addressspace.AddressSpace;
+import de.tum.in.opcua.server.core.addressspace.INodeManager;
+import de.tum.in.opcua.server.core.addressspace.IValueChangeListener;
+
+/**
+ * samples the values of {@link MonitoredItem}s. the sampled value is passed to
+ * {@link MonitoredItem#sample(DataValue)}, which decides if it is a change
+ * that has to be reported.
+ *
+ * requested sampling intervals are revised to a few supported intervals and
+ * all items with the same interval form a {@link SamplingGroup}, which is
+ * sampled in one pass by one timer. within a pass the items are grouped by
+ * namespace, so every {@link INodeManager} is looked up once and a node
+ * monitored by several items (e.g. different attributes) is fetched only once.
+ * an attribute monitored by several items (e.g. of different clients) is read
+ * once and the value is handed to all of them.
+ *
+ * node managers implementing {@link MonitorItemManagable} can push changes
+ * instead. they are asked once per monitored attribute, no matter how many
+ * items monitor it; accepted attributes are not sampled at all and every
+ * pushed value is fanned out to all items via the {@link MonitoredItemIndex}.
+ *
+ * the sampling timers run on their own {@link PublishingScheduler}, so a slow
+ * backend delays sampling but never the publishing of notifications.
+ *
+ * there is no engine wide lock: adding and removing items locks only their
+ * {@link SamplingGroup}, and asking a node manager to push an attribute locks
+ * one of a few stripes chosen by the attribute. calls for the same item have
+ * to be serialized by the caller, the {@link SubscriptionManager} holds the
+ * lock of the item's subscription.
+ *
+ */
+public class SamplingEngine {
+
+	private static final Logger LOG = Logger.getLogger(SamplingEngine.class);
+
+	/**
+	 * supported sampling intervals in milliseconds. requested intervals are
+	 * revised to the next supported one; intervals above the largest one are
+	 * rounded up to a multiple of it.
+	 */
+	private static final long[] SAMPLING_INTERVALS = { 50, 100, 250, 500,
+			1000, 2500, 5000, 10000 };
+
+	/**
+	 * fastest sampling interval (in milliseconds) the server supports.
+	 */
+	public static final double MIN_SAMPLING_INTERVAL = SAMPLING_INTERVALS[0];
+
+	/**
+	 * number of locks guarding the push decisions, a power of 2
+	 */
+	private static final int PUSH_LOCK_STRIPES = 64;
+
+	private final PublishingScheduler scheduler;
+
+	/**
+	 * sampling groups by their interval
+	 */
+	private final ConcurrentMap<Long, SamplingGroup> groups;
+
+	/**
+	 * the group every registered item belongs to
+	 */
+	private final ConcurrentMap<MonitoredItem, SamplingGroup> groupByItem;
+
+	/**
+	 * attributes whose changes are pushed by their node manager
+	 */
+	private final ConcurrentMap<MonitoredItemIndex.Key, PushListener> pushedAttributes;
+
+	/**
+	 * guard starting and stopping the pushing of the attributes whose key
+	 * hashes to them
+	 */
+	private final Object[] pushLocks;
+
+	/**
+	 * all monitored items by attribute, maintained by the
+	 * SubscriptionManager
+	 */
+	private final MonitoredItemIndex index;
+
+	/**
+	 * @param index
+	 *            index of all monitored items. items have to be added before
+	 *            they are registered and removed before they are
+	 *            unregistered.
+	 */
+	public SamplingEngine(MonitoredItemIndex index) {
+		this.index = index;
+		scheduler = new PublishingScheduler("opcua-sampler", Runtime
+				.getRuntime().availableProcessors());
+		groups = new ConcurrentHashMap<Long, SamplingGroup>();
+		groupByItem = new ConcurrentHashMap<MonitoredItem, SamplingGroup>();
+		pushedAttributes = new ConcurrentHashMap<MonitoredItemIndex.Key, PushListener>();
+		pushLocks = new Object[PUSH_LOCK_STRIPES];
+		for (int i = 0; i < pushLocks.length; i++) {
+			pushLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * revises the sampling interval requested by the client to one of the
+	 * supported intervals. a negative value means the publishing interval of
+	 * the subscription should be used.
+	 *
+	 * @param requested
+	 * @param publishingInterval
+	 * @return
+	 */
+	public static double reviseSamplingInterval(double requested,
+			double publishingInterval) {
+		final double interval = requested < 0 ? publishingInterval
+				: requested;
+
+		for (final long supported : SAMPLING_INTERVALS) {
+			if (interval <= supported) {
+				return supported;
+			}
+		}
+
+		final long largest = SAMPLING_INTERVALS[SAMPLING_INTERVALS.length - 1];
+		return Math.ceil(interval / largest) * largest;
+	}
+
+	/**
+	 * starts monitoring the item. if its node manager pushes changes, the
+	 * item is not sampled. otherwise it is sampled with the group of its
+	 * sampling interval; if the item is already registered with another
+	 * interval, it is moved to the new group.
+	 *
+	 * @param item
+	 */
+	public void register(MonitoredItem item) {
+		final MonitoredItemIndex.Key key = MonitoredItemIndex.Key.of(item);
+		synchronized (pushLock(key)) {
+			if (pushedAttributes.containsKey(key) || startPush(key)) {
+				return;
+			}
+		}
+
+		final long interval = item.getSamplingInterval().longValue();
+
+		final SamplingGroup current = groupByItem.get(item);
+		if (current != null) {
+			if (current.getInterval() == interval) {
+				return;
+			}
+			unregister(item);
+		}
+
+		SamplingGroup group;
+		do {
+			group = groups.get(interval);
+			if (group == null) {
+				final SamplingGroup newGroup = new SamplingGroup(interval);
+				group = groups.putIfAbsent(interval, newGroup);
+				if (group == null) {
+					group = newGroup;
+					synchronized (newGroup) {
+						newGroup.setSchedule(scheduler.schedule(new Runnable() {
+
+							@Override
+							public void run() {
+								sample(newGroup);
+							}
+						}, interval));
+					}
+					LOG.debug("created sampling group for interval "
+							+ interval);
+				}
+			}
+		} while (!addToGroup(group, item));
+
+		groupByItem.put(item, group);
+	}
+
+	/**
+	 * @return false if the group was retired in the meantime, a new one has
+	 *         to be used then
+	 */
+	private boolean addToGroup(SamplingGroup group, MonitoredItem item) {
+		synchronized (group) {
+			if (group.isRetired()) {
+				return false;
+			}
+			group.add(item);
+			return true;
+		}
+	}
+
+	/**
+	 * stops sampling the item. the timer of a group is stopped with its last
+	 * item, pushing of an attribute is stopped when no item in the
+	 * {@link MonitoredItemIndex} monitors it anymore.
+	 *
+	 * @param item
+	 */
+	public void unregister(MonitoredItem item) {
+		final MonitoredItemIndex.Key key = MonitoredItemIndex.Key.of(item);
+		synchronized (pushLock(key)) {
+			final PushListener pushListener = pushedAttributes.get(key);
+			if (pushListener != null) {
+				if (index.get(key).isEmpty()) {
+					stopPush(key, pushListener);
+				}
+				return;
+			}
+		}
+
+		final SamplingGroup group = groupByItem.remove(item);
+		if (group == null) {
+			return;
+		}
+
+		synchronized (group) {
+			group.remove(item);
+			if (group.isEmpty()) {
+				// items registered from now on create a new group
+				group.retire();
+				group.getSchedule().cancel(false);
+				groups.remove(group.getInterval(), group);
+				LOG.debug("removed sampling group for interval "
+						+ group.getInterval());
+			}
+		}
+	}
+
+	private Object pushLock(MonitoredItemIndex.Key key) {
+		return pushLocks[key.hashCode() & (PUSH_LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * asks the node manager of the attribute to push changes
+	 *
+	 * @param key
+	 * @return true if the node manager pushes changes of the attribute
+	 */
+	private boolean startPush(MonitoredItemIndex.Key key) {
+		final INodeManager nodeMgr = AddressSpace.getInstance()
+				.getNodeManager(key.getNodeId().getNamespaceIndex());
+		if (!(nodeMgr instanceof MonitorItemManagable)) {
+			return false;
+		}
+
+		final MonitorItemManagable monitorMgr = (MonitorItemManagable) nodeMgr;
+		final PushListener listener = new PushListener(key, monitorMgr, index);
+		try {
+			if (monitorMgr.startMonitoring(key.getNodeId(),
+					key.getAttributeId(), listener)) {
+				pushedAttributes.put(key, listener);
+				LOG.debug("changes of " + key + " are pushed");
+				return true;
+			}
+		} catch (final RuntimeException e) {
+			LOG.error("could not start monitoring of " + key + ": "
+					+ e.getMessage(), e);
+		}
+		return false;
+	}
+
+	private void stopPush(MonitoredItemIndex.Key key, PushListener listener) {
+		pushedAttributes.remove(key);
+		try {
+			listener.nodeMgr.stopMonitoring(key.getNodeId(),
+					key.getAttributeId(), listener);
+		} catch (final RuntimeException e) {
+			LOG.error("could not stop monitoring of " + key + ": "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * one sampling pass over all items of the group. every attribute is read
+	 * once, with one call per node manager, and the value is shared by all
+	 * items monitoring it.
+	 *
+	 * @param group
+	 */
+	void sample(SamplingGroup group) {
+		try {
+			final List<MonitoredItem> items = new ArrayList<MonitoredItem>(
+					group.getItems());
+			final Map<MonitoredItemIndex.Key, Integer> positions = new HashMap<MonitoredItemIndex.Key, Integer>();
+			final List<ReadValueId> nodesToRead = new ArrayList<ReadValueId>();
+			// position of the value of every item in nodesToRead
+			final int[] itemPositions = new int[items.size()];
+			for (int i = 0; i < itemPositions.length; i++) {
+				final MonitoredItem item = items.get(i);
+				final MonitoredItemIndex.Key key = MonitoredItemIndex.Key
+						.of(item);
+				Integer position = positions.get(key);
+				if (position == null) {
+					position = nodesToRead.size();
+					positions.put(key, position);
+					nodesToRead.add(new ReadValueId(item.getNodeId(), item
+							.getAttributeId(), null, null));
+				}
+				itemPositions[i] = position;
+			}
+
+			final DataValue[] values = AddressSpace.getInstance().read(
+					nodesToRead);
+			for (final DataValue value : values) {
+				// complete before the value is shared
+				if (value.getSourceTimestamp() == null) {
+					value.setSourceTimestamp(value.getServerTimestamp());
+				}
+			}
+
+			for (int i = 0; i < itemPositions.length; i++) {
+				final MonitoredItem item = items.get(i);
+				try {
+					item.sample(values[itemPositions[i]]);
+				} catch (final RuntimeException e) {
+					LOG.error("sampling of item " + item.getId() + " failed: "
+							+ e.getMessage(), e);
+				}
+			}
+		} catch (final RuntimeException e) {
+			// an exception would cancel the periodic task
+			LOG.error("sampling with interval " + group.getInterval()
+					+ " failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * reads the attribute of the node from the {@link AddressSpace}. errors
+	 * are reported in the status code of the returned value.
+	 *
+	 * @param nodeId
+	 * @param attrId
+	 * @return
+	 */
+	public DataValue read(NodeId nodeId, UnsignedInteger attrId) {
+		return AddressSpace.getInstance().read(
+				Collections.singletonList(new ReadValueId(nodeId, attrId, null,
+						null)))[0];
+	}
+
+	/**
+	 * stops sampling of all items and releases the sampling threads
+	 */
+	public synchronized void shutdown() {
+		for (final Map.Entry<MonitoredItemIndex.Key, PushListener> entry : pushedAttributes
+				.entrySet()) {
+			stopPush(entry.getKey(), entry.getValue());
+		}
+		for (final SamplingGroup group : groups.values()) {
+			group.getSchedule().cancel(false);
+		}
+		groups.clear();
+		groupByItem.clear();
+		scheduler.shutdown();
+	}
+
+	/**
+	 * hands the values pushed by a node manager to all items monitoring the
+	 * attribute
+	 */
+	private static class PushListener implements IValueChangeListener {
+
+		private final MonitoredItemIndex.Key key;
+		private final MonitorItemManagable nodeMgr;
+		private final MonitoredItemIndex index;
+
+		PushListener(MonitoredItemIndex.Key key, MonitorItemManagable nodeMgr,
+				MonitoredItemIndex index) {
+			this.key = key;
+			this.nodeMgr = nodeMgr;
+			this.index = index;
+		}
+
+		@Override
+		public void valueChanged(NodeId nodeId, UnsignedInteger attrId,
+				DataValue value) {
+			if (value.getStatusCode() == null) {
+				value.setStatusCode(StatusCode.GOOD);
+			}
+			if (value.getServerTimestamp() == null) {
+				value.setServerTimestamp(new DateTime());
+			}
+			index.fanOut(key, value);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package de.tum.in.opcua.server.core.subscription;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * all {@link MonitoredItem}s sharing the same (revised) sampling interval.
+ * the items of a group are sampled together in one pass of one timer, see
+ * {@link SamplingEngine}.
+ *
+ * adding and removing items and retiring the group happen while holding the
+ * lock of the group.
+ *
+ */
+public class SamplingGroup {
+
+	private final long interval;
+
+	private final Set<MonitoredItem> items;
+
+	private ScheduledFuture<?> schedule;
+
+	/**
+	 * set when the last item was removed and the timer stopped
+	 */
+	private boolean retired;
+
+	/**
+	 * @param interval
+	 *            sampling interval in milliseconds
+	 */
+	public SamplingGroup(long interval) {
+		this.interval = interval;
+		items = Collections
+				.newSetFromMap(new ConcurrentHashMap<MonitoredItem, Boolean>());
+	}
+
+	/**
+	 * @return the interval
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return the items. the set can be iterated while items are added or
+	 *         removed.
+	 */
+	public Set<MonitoredItem> getItems() {
+		return items;
+	}
+
+	public void add(MonitoredItem item) {
+		items.add(item);
+	}
+
+	public void remove(MonitoredItem item) {
+		items.remove(item);
+	}
+
+	public boolean isEmpty() {
+		return items.isEmpty();
+	}
+
+	/**
+	 * @return true if the group is not used anymore
+	 */
+	public boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * marks the group as not used anymore, no items may be added afterwards
+	 */
+	public void retire() {
+		retired = true;
+	}
+
+	/**
+	 * @return the schedule
+	 */
+	public ScheduledFuture<?> getSchedule() {
+		return schedule;
+	}
+
+	/**
+	 * @param schedule
+	 *            the schedule to set
+	 */
+	public void setSchedule(ScheduledFuture<?> schedule) {
+		this.schedule = schedule;
+	}
+}
@@ -1,10 +1,12 @@
 package de.tum.in.opcua.server.core.subscription;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.opcfoundation.ua.builtintypes.NodeId;
 
+import de.tum.in.opcua.server.core.util.IntObjectMap;
+
 public class Subscription {
 
 	private int id;
@@ -43,7 +45,7 @@ public class Subscription {
 	/**
 	 * indicates if publishing is enabled for this Subscription
 	 */
-	private boolean publishingEnabled;
+	private volatile boolean publishingEnabled;
 
 	/**
 	 * Indicates the relative priority of the Subscription. When more than one
@@ -55,21 +57,38 @@ public class Subscription {
 	 * order to prevent the Subscription from expiring. A Client that does not
 	 * require special priority settings should set this value to zero.
 	 * 
-	 * not supported at the moment!!
+	 * see {@link PublishReqCollection}
 	 */
 	private int priority;
 
-	private Map<Integer, MonitoredItem> monitoredItems;
+	/**
+	 * changed while holding the lock of this Subscription, but read by the
+	 * sampling and publishing threads without it
+	 */
+	private IntObjectMap<MonitoredItem> monitoredItems;
+
+	/**
+	 * MonitoredItems with a pending value. the Publisher only looks at these,
+	 * so publishing costs depend on the number of changes and not on the
+	 * number of items.
+	 */
+	private final Queue<MonitoredItem> changedItems;
 
 	private Publisher publisher;
 
+	/**
+	 * sent and not yet acknowledged NotificationMessages
+	 */
+	private RetransmissionQueue retransmissionQueue;
+
 	/**
 	 * @param id
 	 */
 	public Subscription(int id, NodeId sessionId) {
 		this.id = id;
 		this.sessionId = sessionId;
-		monitoredItems = new HashMap<Integer, MonitoredItem>();
+		monitoredItems = new IntObjectMap<MonitoredItem>();
+		changedItems = new ConcurrentLinkedQueue<MonitoredItem>();
 	}
 
 	/**
@@ -200,10 +219,37 @@ public class Subscription {
 		return monitoredItems.get(id);
 	}
 
+	public MonitoredItem removeMonitoredItem(int id) {
+		return monitoredItems.remove(id);
+	}
+
+	/**
+	 * called by a MonitoredItem when it got a new value to report
+	 *
+	 * @param item
+	 */
+	void itemChanged(MonitoredItem item) {
+		changedItems.offer(item);
+	}
+
+	/**
+	 * @return the next changed MonitoredItem or null if there is none
+	 */
+	MonitoredItem pollChangedItem() {
+		return changedItems.poll();
+	}
+
+	/**
+	 * @return true if there are notifications to publish
+	 */
+	boolean hasChangedItems() {
+		return !changedItems.isEmpty();
+	}
+
 	/**
 	 * @return the monitoredItems
 	 */
-	public Map<Integer, MonitoredItem> getMonitoredItems() {
+	public IntObjectMap<MonitoredItem> getMonitoredItems() {
 		return monitoredItems;
 	}
 
@@ -211,7 +257,7 @@ public class Subscription {
 	 * @param monitoredItems
 	 *            the monitoredItems to set
 	 */
-	public void setMonitoredItems(Map<Integer, MonitoredItem> monitoredItems) {
+	public void setMonitoredItems(IntObjectMap<MonitoredItem> monitoredItems) {
 		this.monitoredItems = monitoredItems;
 	}
 
@@ -230,4 +276,20 @@ public class Subscription {
 		this.publisher = publisher;
 	}
 
+	/**
+	 * @return the retransmissionQueue
+	 */
+	public RetransmissionQueue getRetransmissionQueue() {
+		return retransmissionQueue;
+	}
+
+	/**
+	 * @param retransmissionQueue
+	 *            the retransmissionQueue to set
+	 */
+	public void setRetransmissionQueue(
+			RetransmissionQueue retransmissionQueue) {
+		this.retransmissionQueue = retransmissionQueue;
+	}
+
 }
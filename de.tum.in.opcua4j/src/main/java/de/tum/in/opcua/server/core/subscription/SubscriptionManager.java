@@ -1,24 +1,45 @@
 package de.tum.in.opcua.server.core.subscription;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
 import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.CreateMonitoredItemsRequest;
 import org.opcfoundation.ua.core.CreateSubscriptionRequest;
+import org.opcfoundation.ua.core.DataChangeFilter;
+import org.opcfoundation.ua.core.DeleteMonitoredItemsRequest;
 import org.opcfoundation.ua.core.DeleteSubscriptionsRequest;
+import org.opcfoundation.ua.core.ModifyMonitoredItemsRequest;
 import org.opcfoundation.ua.core.ModifySubscriptionRequest;
 import org.opcfoundation.ua.core.MonitoredItemCreateRequest;
+import org.opcfoundation.ua.core.MonitoredItemCreateResult;
+import org.opcfoundation.ua.core.MonitoredItemModifyRequest;
+import org.opcfoundation.ua.core.MonitoredItemModifyResult;
+import org.opcfoundation.ua.core.MonitoringMode;
+import org.opcfoundation.ua.core.MonitoringParameters;
+import org.opcfoundation.ua.core.NotificationMessage;
 import org.opcfoundation.ua.core.PublishRequest;
 import org.opcfoundation.ua.core.PublishResponse;
+import org.opcfoundation.ua.core.RepublishRequest;
+import org.opcfoundation.ua.core.SetMonitoringModeRequest;
 import org.opcfoundation.ua.core.SetPublishingModeRequest;
+import org.opcfoundation.ua.core.SetTriggeringRequest;
+import org.opcfoundation.ua.core.SetTriggeringResponse;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.SubscriptionAcknowledgement;
+import org.opcfoundation.ua.encoding.DecodingException;
 import org.opcfoundation.ua.transport.EndpointServiceRequest;
 
 import de.tum.in.opcua.server.core.RequestContext;
+import de.tum.in.opcua.server.core.Session;
+import de.tum.in.opcua.server.core.util.IntObjectMap;
 
 /**
  * 
@@ -58,16 +79,20 @@ public class SubscriptionManager {
 	 */
 
 	/**
-	 * counts up to generate unique subscription IDs
+	 * counts up to generate unique subscription IDs. ids are UInt32 on the
+	 * wire, we only hand out the positive half of the int range, see
+	 * {@link #nextId(AtomicInteger)}.
 	 */
-	private static int subscriptionIndex = 0;
+	private final AtomicInteger subscriptionIndex = new AtomicInteger();
 
-	private static int monitoredItemIndex = 0;
+	private final AtomicInteger monitoredItemIndex = new AtomicInteger();
 
 	/**
-	 * subscriptions per id
+	 * subscriptions per id. changes of a single subscription and its items
+	 * are serialized by synchronizing on the Subscription, so requests for
+	 * different subscriptions never wait for each other.
 	 */
-	private final Map<Integer, Subscription> subscriptions;
+	private final IntObjectMap<Subscription> subscriptions;
 
 	/**
 	 * queue of pending PublishRequests we can use to send notifications,
@@ -75,9 +100,40 @@ public class SubscriptionManager {
 	 */
 	private final PublishReqCollection publishRequests;
 
+	/**
+	 * runs the publishing cycles of all subscriptions on a few shared threads
+	 */
+	private final PublishingScheduler publishingScheduler;
+
+	/**
+	 * all MonitoredItems of all subscriptions by the attribute they monitor
+	 */
+	private final MonitoredItemIndex itemIndex;
+
+	/**
+	 * samples the values of all MonitoredItems
+	 */
+	private final SamplingEngine samplingEngine;
+
+	/**
+	 * maximum number of unacknowledged NotificationMessages kept per
+	 * subscription and per session for retransmission
+	 */
+	private final int retransmissionQueueSize = 20;
+	private final int sessionRetransmissionLimit = 100;
+
+	/**
+	 * NotificationMessages kept for retransmission per Session-id
+	 */
+	private final ConcurrentMap<NodeId, RetransmissionQueue.SessionHistory> retransmissionHistories;
+
 	public SubscriptionManager() {
-		subscriptions = new HashMap<Integer, Subscription>();
+		subscriptions = new IntObjectMap<Subscription>();
 		publishRequests = new PublishReqCollection();
+		publishingScheduler = new PublishingScheduler();
+		itemIndex = new MonitoredItemIndex();
+		samplingEngine = new SamplingEngine(itemIndex);
+		retransmissionHistories = new ConcurrentHashMap<NodeId, RetransmissionQueue.SessionHistory>();
 	}
 
 	/**
@@ -85,56 +141,97 @@ public class SubscriptionManager {
 	 * 
 	 * @return
 	 */
-	public synchronized Subscription createSubscription(
-			CreateSubscriptionRequest req, NodeId sessionId) {
-		final Subscription subscription = new Subscription(subscriptionIndex++,
-				sessionId);
+	public Subscription createSubscription(CreateSubscriptionRequest req,
+			NodeId sessionId) {
+		int id;
+		do {
+			id = nextId(subscriptionIndex);
+		} while (subscriptions.containsKey(id));
+		final Subscription subscription = new Subscription(id, sessionId);
 
 		// TODO validate all requested values
-		subscription.setLifetimeCount(req.getRequestedLifetimeCount()
-				.intValue());
-		subscription.setMaxKeepAliveCount(req.getRequestedMaxKeepAliveCount()
-				.intValue());
+		reviseCounts(subscription, req.getRequestedLifetimeCount(),
+				req.getRequestedMaxKeepAliveCount());
 		subscription.setMaxNotificationsPerPublish(req
 				.getMaxNotificationsPerPublish().intValue());
 		subscription.setPriority(req.getPriority().intValue());
 		subscription.setPublishingEnabled(req.getPublishingEnabled());
 		subscription
 				.setPublishingInterval(req.getRequestedPublishingInterval());
-		subscriptions.put(subscription.getId(), subscription);
 
-		subscription.setPublisher(new Publisher(subscription, publishRequests));
+		subscription.setRetransmissionQueue(new RetransmissionQueue(
+				retransmissionQueueSize, getRetransmissionHistory(sessionId)));
+		synchronized (subscription) {
+			// the publisher may expire the subscription right away, so it has
+			// to be known before
+			if (subscriptions.putIfAbsent(id, subscription) != null) {
+				// another request got the same id in the meantime
+				return createSubscription(req, sessionId);
+			}
+			subscription.setPublisher(new Publisher(subscription,
+					publishRequests, publishingScheduler, this));
+		}
 
 		return subscription;
 	}
 
+	/**
+	 * next id from the counter. the counter wraps around within the positive
+	 * int range, so every id can be sent as UInt32 and a UInt32 from the
+	 * client above Integer.MAX_VALUE never matches a local id.
+	 */
+	private static int nextId(AtomicInteger counter) {
+		return counter.getAndIncrement() & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * the keep-alive count has to be at least 1 and the lifetime count at
+	 * least three times the keep-alive count
+	 */
+	private void reviseCounts(Subscription subscription,
+			UnsignedInteger lifetimeCount, UnsignedInteger maxKeepAliveCount) {
+		final int keepAlive = (int) Math.min(Integer.MAX_VALUE / 3,
+				Math.max(1, maxKeepAliveCount.longValue()));
+		final int lifetime = (int) Math.min(Integer.MAX_VALUE,
+				Math.max(3L * keepAlive, lifetimeCount.longValue()));
+		subscription.setMaxKeepAliveCount(keepAlive);
+		subscription.setLifetimeCount(lifetime);
+	}
+
 	/**
 	 * updates the subscription and returns it with the new values set
 	 * 
 	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return null if the session has no subscription with the requested id
 	 */
-	public synchronized Subscription modifySubscription(
-			ModifySubscriptionRequest req) {
-		final Subscription subscription = getSubscription(req
+	public Subscription modifySubscription(ModifySubscriptionRequest req,
+			NodeId sessionId) {
+		final Subscription subscription = getSubscription(sessionId, req
 				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			return null;
+		}
 
-		subscription.setLifetimeCount(req.getRequestedLifetimeCount()
-				.intValue());
-		subscription.setMaxKeepAliveCount(req.getRequestedMaxKeepAliveCount()
-				.intValue());
-		subscription.setMaxNotificationsPerPublish(req
-				.getMaxNotificationsPerPublish().intValue());
-		subscription.setPriority(req.getPriority().intValue());
-		subscription
-				.setPublishingInterval(req.getRequestedPublishingInterval());
-
-		subscription.getPublisher().configure();
-		// TODO modify timers
+		synchronized (subscription) {
+			reviseCounts(subscription, req.getRequestedLifetimeCount(),
+					req.getRequestedMaxKeepAliveCount());
+			subscription.setMaxNotificationsPerPublish(req
+					.getMaxNotificationsPerPublish().intValue());
+			subscription.setPriority(req.getPriority().intValue());
+			subscription.setPublishingInterval(req
+					.getRequestedPublishingInterval());
+
+			if (isActive(subscription)) {
+				subscription.getPublisher().configure();
+			}
+		}
 
 		return subscription;
 	}
 
-	public synchronized Subscription getSubscription(int id) {
+	public Subscription getSubscription(int id) {
 		final Subscription s = subscriptions.get(id);
 
 		if (s == null) {
@@ -144,28 +241,136 @@ public class SubscriptionManager {
 		return s;
 	}
 
-	public synchronized void setPublishingMode(SetPublishingModeRequest req) {
-		for (final UnsignedInteger id : req.getSubscriptionIds()) {
-			if (subscriptions.containsKey(id)) {
-				subscriptions.get(id).setPublishingEnabled(
-						req.getPublishingEnabled());
+	/**
+	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return one result per requested subscription, Bad_SubscriptionIdInvalid
+	 *         for subscriptions which do not exist or belong to another
+	 *         session
+	 */
+	public StatusCode[] setPublishingMode(SetPublishingModeRequest req,
+			NodeId sessionId) {
+		final UnsignedInteger[] ids = req.getSubscriptionIds();
+		final StatusCode[] results = new StatusCode[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			final Subscription subscription = getSubscription(sessionId,
+					ids[i].intValue());
+			if (subscription != null) {
+				subscription.setPublishingEnabled(req.getPublishingEnabled());
+				results[i] = StatusCode.GOOD;
 			} else {
 				LOG.debug("clients wants to set publishing mode for subscriptionid "
-						+ id + ", but does not exist");
+						+ ids[i] + ", but does not exist");
+				results[i] = new StatusCode(
+						StatusCodes.Bad_SubscriptionIdInvalid);
 			}
 		}
+		return results;
 	}
 
-	public synchronized void deleteSubscription(DeleteSubscriptionsRequest req) {
-		for (final UnsignedInteger id : req.getSubscriptionIds()) {
-			if (subscriptions.containsKey(id)) {
-				final Subscription subscription = subscriptions.remove(id);
-				subscription.getPublisher().stopPublishing();
+	/**
+	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return one result per requested subscription, Bad_SubscriptionIdInvalid
+	 *         for subscriptions which do not exist or belong to another
+	 *         session
+	 */
+	public StatusCode[] deleteSubscription(DeleteSubscriptionsRequest req,
+			NodeId sessionId) {
+		final UnsignedInteger[] ids = req.getSubscriptionIds();
+		final StatusCode[] results = new StatusCode[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			final Subscription subscription = getSubscription(sessionId,
+					ids[i].intValue());
+			if (subscription != null
+					&& subscriptions.remove(subscription.getId(), subscription)) {
+				removeSubscription(subscription);
+				results[i] = StatusCode.GOOD;
 			} else {
-				LOG.debug("clients wants to remove subscription with id " + id
-						+ ", but does not exist");
+				LOG.debug("clients wants to remove subscription with id "
+						+ ids[i] + ", but does not exist");
+				results[i] = new StatusCode(
+						StatusCodes.Bad_SubscriptionIdInvalid);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * called by the {@link Publisher} of a subscription whose lifetime
+	 * expired
+	 *
+	 * @param subscription
+	 */
+	void expireSubscription(Subscription subscription) {
+		if (subscriptions.remove(subscription.getId(), subscription)) {
+			removeSubscription(subscription);
+
+			// the session may be gone already (closed without deleting its
+			// subscriptions), so drop what we keep for it once nothing uses
+			// it anymore
+			final NodeId sessionId = subscription.getSessionId();
+			for (final Subscription other : subscriptions.values()) {
+				if (other.getSessionId().equals(sessionId)) {
+					return;
+				}
+			}
+			retransmissionHistories.remove(sessionId);
+			publishRequests.removeIdleSession(sessionId);
+		}
+	}
+
+	/**
+	 * stops publishing and sampling of the already removed subscription and
+	 * frees its resources
+	 */
+	private void removeSubscription(Subscription subscription) {
+		synchronized (subscription) {
+			subscription.getPublisher().stopPublishing();
+			subscription.getRetransmissionQueue().clear();
+			for (final MonitoredItem item : subscription.getMonitoredItems()
+					.values()) {
+				stopMonitoring(item);
+			}
+			subscription.getMonitoredItems().clear();
+		}
+	}
+
+	/**
+	 * @return false if the subscription was removed in the meantime. has to
+	 *         be called while holding the lock of the subscription.
+	 */
+	private boolean isActive(Subscription subscription) {
+		return subscriptions.get(subscription.getId()) == subscription;
+	}
+
+	/**
+	 * frees everything held for a closed session: its queued PublishRequests
+	 * are answered with Bad_SessionClosed and, if requested, its
+	 * subscriptions are deleted. subscriptions which are not deleted expire
+	 * after their lifetime, because nobody sends PublishRequests for them
+	 * anymore.
+	 *
+	 * @param sessionId
+	 * @param deleteSubscriptions
+	 */
+	public void closeSession(NodeId sessionId, boolean deleteSubscriptions) {
+		if (deleteSubscriptions) {
+			for (final Subscription subscription : subscriptions.values()) {
+				if (subscription.getSessionId().equals(sessionId)
+						&& subscriptions.remove(subscription.getId(),
+								subscription)) {
+					removeSubscription(subscription);
+				}
 			}
 		}
+
+		// remaining subscriptions keep their own reference to the history
+		retransmissionHistories.remove(sessionId);
+		publishRequests.removeSession(sessionId);
+		LOG.debug("cleaned up session " + sessionId);
 	}
 
 	/**
@@ -173,57 +378,533 @@ public class SubscriptionManager {
 	 * acknowledged notifications 3. keep request to send out notifications
 	 * 
 	 * @param serviceReq
+	 * @throws ServiceResultException
+	 *             with Bad_SessionIdInvalid if the request has no session,
+	 *             e.g. because it timed out or the token is stale, or with
+	 *             Bad_SessionNotActivated if the session is not activated
 	 */
 	public void onPublish(
-			EndpointServiceRequest<PublishRequest, PublishResponse> serviceReq) {
+			EndpointServiceRequest<PublishRequest, PublishResponse> serviceReq)
+			throws ServiceResultException {
 		// ad 1.
 		// TODO clear client-timeout timer
 
+		final Session session = RequestContext.get().getSession();
+		if (session == null) {
+			throw new ServiceResultException(StatusCodes.Bad_SessionIdInvalid);
+		}
+		if (!session.isActive()) {
+			throw new ServiceResultException(
+					StatusCodes.Bad_SessionNotActivated);
+		}
+		final NodeId sessionID = session.getSessionID();
+
 		// ad 2.
-		// is done when the respond is published
+		// acknowledgements may be for any subscription of the session, so
+		// they are processed here and not by the publisher answering the
+		// request
+		final SubscriptionAcknowledgement[] acks = serviceReq.getRequest()
+				.getSubscriptionAcknowledgements();
+		StatusCode[] ackResults = null;
+		if (acks != null) {
+			ackResults = new StatusCode[acks.length];
+			for (int i = 0; i < acks.length; i++) {
+				ackResults[i] = acknowledge(sessionID, acks[i]);
+			}
+		}
 
 		// ad 3.
-		final NodeId sessionID = RequestContext.get().getSession()
-				.getSessionID();
-		publishRequests.offer(sessionID, serviceReq);
+		publishRequests.offer(sessionID, new QueuedPublishRequest(serviceReq,
+				ackResults));
+	}
+
+	private StatusCode acknowledge(NodeId sessionId,
+			SubscriptionAcknowledgement ack) {
+		final Subscription subscription = getSubscription(sessionId, ack
+				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			return new StatusCode(StatusCodes.Bad_SubscriptionIdInvalid);
+		}
+		if (subscription.getRetransmissionQueue().acknowledge(
+				ack.getSequenceNumber().intValue())) {
+			return StatusCode.GOOD;
+		}
+		return new StatusCode(StatusCodes.Bad_SequenceNumberUnknown);
+	}
+
+	/**
+	 * returns the NotificationMessage kept for retransmission
+	 *
+	 * @param req
+	 * @param sessionId
+	 * @return
+	 * @throws ServiceResultException
+	 *             Bad_SubscriptionIdInvalid if the subscription does not exist
+	 *             in the session, Bad_MessageNotAvailable if the message is
+	 *             not available anymore
+	 */
+	public NotificationMessage republish(RepublishRequest req, NodeId sessionId)
+			throws ServiceResultException {
+		final Subscription subscription = getSubscription(sessionId, req
+				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			throw new ServiceResultException(
+					StatusCodes.Bad_SubscriptionIdInvalid);
+		}
+
+		final NotificationMessage message = subscription
+				.getRetransmissionQueue().get(
+						req.getRetransmitSequenceNumber().intValue());
+		if (message == null) {
+			throw new ServiceResultException(
+					StatusCodes.Bad_MessageNotAvailable);
+		}
+		return message;
+	}
+
+	/**
+	 * returns the subscription only if it belongs to the session
+	 */
+	private Subscription getSubscription(NodeId sessionId, int id) {
+		final Subscription subscription = getSubscription(id);
+		if (subscription == null
+				|| !subscription.getSessionId().equals(sessionId)) {
+			return null;
+		}
+		return subscription;
+	}
+
+	private RetransmissionQueue.SessionHistory getRetransmissionHistory(
+			NodeId sessionId) {
+		RetransmissionQueue.SessionHistory history = retransmissionHistories
+				.get(sessionId);
+		if (history == null) {
+			final RetransmissionQueue.SessionHistory newHistory = new RetransmissionQueue.SessionHistory(
+					sessionRetransmissionLimit);
+			history = retransmissionHistories.putIfAbsent(sessionId,
+					newHistory);
+			if (history == null) {
+				history = newHistory;
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * creates the requested MonitoredItems and starts sampling them. returns
+	 * one result per requested item or null if the subscription does not
+	 * exist or belongs to another session.
+	 *
+	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return
+	 */
+	public MonitoredItemCreateResult[] createMonitoredItems(
+			CreateMonitoredItemsRequest req, NodeId sessionId) {
+		final Subscription subscription = getSubscription(sessionId, req
+				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			return null;
+		}
+
+		final MonitoredItemCreateRequest[] itemsToCreate = req
+				.getItemsToCreate();
+		if (itemsToCreate == null) {
+			return new MonitoredItemCreateResult[0];
+		}
+
+		synchronized (subscription) {
+			if (!isActive(subscription)) {
+				return null;
+			}
+
+			final MonitoredItemCreateResult[] results = new MonitoredItemCreateResult[itemsToCreate.length];
+			for (int i = 0; i < itemsToCreate.length; i++) {
+				results[i] = createMonitoredItem(subscription,
+						itemsToCreate[i]);
+			}
+			return results;
+		}
+	}
+
+	private MonitoredItemCreateResult createMonitoredItem(
+			Subscription subscription, MonitoredItemCreateRequest itemReq) {
+		final MonitoringParameters params = itemReq.getRequestedParameters();
+
+		final DataChangeFilter filter;
+		try {
+			filter = decodeFilter(params.getFilter());
+		} catch (final ServiceResultException e) {
+			return new MonitoredItemCreateResult(e.getStatusCode(), null, null,
+					null, null);
+		}
+
+		final NodeId nodeId = itemReq.getItemToMonitor().getNodeId();
+		final UnsignedInteger attrId = itemReq.getItemToMonitor()
+				.getAttributeId();
+		final DataValue initialValue = samplingEngine.read(nodeId, attrId);
+		if (StatusCodes.Bad_NodeIdUnknown.equals(initialValue.getStatusCode()
+				.getValue())) {
+			return new MonitoredItemCreateResult(
+					initialValue.getStatusCode(), null, null, null, null);
+		}
+
+		int itemId;
+		do {
+			itemId = nextId(monitoredItemIndex);
+		} while (subscription.getMonitoredItem(itemId) != null);
+		final MonitoredItem item = new MonitoredItem(itemId, subscription);
+		item.setNodeId(nodeId);
+		item.setAttributeId(attrId);
+		item.setMode(itemReq.getMonitoringMode());
+		setParameters(subscription, item, params, filter);
+
+		subscription.addMonitoredItem(item);
+
+		// the value we just read is the initial value the client gets with
+		// the next publish
+		item.sample(initialValue);
+		if (item.getMode() != MonitoringMode.Disabled) {
+			startMonitoring(item);
+		}
+
+		return new MonitoredItemCreateResult(StatusCode.GOOD,
+				new UnsignedInteger(item.getId()), item.getSamplingInterval(),
+				item.getQueueSize(), null);
+	}
+
+	/**
+	 * changes the parameters of existing MonitoredItems. an item whose
+	 * sampling interval changed is moved to its new sampling group, all other
+	 * items keep sampling. returns one result per requested item or null if
+	 * the subscription does not exist or belongs to another session.
+	 *
+	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return
+	 */
+	public MonitoredItemModifyResult[] modifyMonitoredItems(
+			ModifyMonitoredItemsRequest req, NodeId sessionId) {
+		final Subscription subscription = getSubscription(sessionId, req
+				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			return null;
+		}
+
+		final MonitoredItemModifyRequest[] itemsToModify = req
+				.getItemsToModify();
+		if (itemsToModify == null) {
+			return new MonitoredItemModifyResult[0];
+		}
+
+		synchronized (subscription) {
+			if (!isActive(subscription)) {
+				return null;
+			}
+
+			final MonitoredItemModifyResult[] results = new MonitoredItemModifyResult[itemsToModify.length];
+			for (int i = 0; i < itemsToModify.length; i++) {
+				results[i] = modifyMonitoredItem(subscription,
+						itemsToModify[i]);
+			}
+			return results;
+		}
+	}
+
+	private MonitoredItemModifyResult modifyMonitoredItem(
+			Subscription subscription, MonitoredItemModifyRequest itemReq) {
+		final MonitoredItem item = subscription.getMonitoredItem(itemReq
+				.getMonitoredItemId().intValue());
+		if (item == null) {
+			return new MonitoredItemModifyResult(new StatusCode(
+					StatusCodes.Bad_MonitoredItemIdInvalid), null, null, null);
+		}
+
+		final MonitoringParameters params = itemReq.getRequestedParameters();
+		final DataChangeFilter filter;
+		try {
+			filter = decodeFilter(params.getFilter());
+		} catch (final ServiceResultException e) {
+			return new MonitoredItemModifyResult(e.getStatusCode(), null,
+					null, null);
+		}
+
+		setParameters(subscription, item, params, filter);
+		if (item.getMode() != MonitoringMode.Disabled) {
+			// moves the item if the sampling interval changed
+			samplingEngine.register(item);
+		}
+
+		return new MonitoredItemModifyResult(StatusCode.GOOD,
+				item.getSamplingInterval(), item.getQueueSize(), null);
 	}
 
-	public synchronized List<MonitoredItem> createMonitoredItems(
-			CreateMonitoredItemsRequest req) {
-		final List<MonitoredItem> createdItems = new ArrayList<MonitoredItem>();
-		final Subscription subscription = getSubscription(req
+	/**
+	 * sets the monitoring mode of MonitoredItems. returns one result per
+	 * requested item or null if the subscription does not exist or
+	 * belongs to another session.
+	 *
+	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return
+	 */
+	public StatusCode[] setMonitoringMode(SetMonitoringModeRequest req,
+			NodeId sessionId) {
+		final Subscription subscription = getSubscription(sessionId, req
+				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			return null;
+		}
+
+		final UnsignedInteger[] itemIds = req.getMonitoredItemIds();
+		if (itemIds == null) {
+			return new StatusCode[0];
+		}
+
+		final MonitoringMode mode = req.getMonitoringMode();
+		synchronized (subscription) {
+			if (!isActive(subscription)) {
+				return null;
+			}
+
+			final StatusCode[] results = new StatusCode[itemIds.length];
+			for (int i = 0; i < itemIds.length; i++) {
+				final MonitoredItem item = subscription
+						.getMonitoredItem(itemIds[i].intValue());
+				if (item == null) {
+					results[i] = new StatusCode(
+							StatusCodes.Bad_MonitoredItemIdInvalid);
+					continue;
+				}
+
+				final MonitoringMode oldMode = item.getMode();
+				item.setMode(mode);
+				if (oldMode == MonitoringMode.Disabled
+						&& mode != MonitoringMode.Disabled) {
+					startMonitoring(item);
+				} else if (oldMode != MonitoringMode.Disabled
+						&& mode == MonitoringMode.Disabled) {
+					stopMonitoring(item);
+				}
+				results[i] = StatusCode.GOOD;
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * deletes MonitoredItems. values not yet published are discarded. returns
+	 * one result per requested item or null if the subscription does not
+	 * exist or belongs to another session.
+	 *
+	 * @param req
+	 * @param sessionId
+	 *            the session sending the request
+	 * @return
+	 */
+	public StatusCode[] deleteMonitoredItems(
+			DeleteMonitoredItemsRequest req, NodeId sessionId) {
+		final Subscription subscription = getSubscription(sessionId, req
 				.getSubscriptionId().intValue());
-		if (req.getItemsToCreate() != null) {
-			for (final MonitoredItemCreateRequest itemReq : req
-					.getItemsToCreate()) {
-				final MonitoredItem item = new MonitoredItem(
-						monitoredItemIndex++, subscription);
-				item.setNodeId(itemReq.getItemToMonitor().getNodeId());
-				item.setAttributeId(itemReq.getItemToMonitor().getAttributeId());
-				item.setMode(itemReq.getMonitoringMode());
-
-				// TODO revise samplinginterval and queuesize
-				item.setClientHandle(itemReq.getRequestedParameters()
-						.getClientHandle());
-				if (itemReq.getRequestedParameters().getSamplingInterval() == -1) {
-					// use the default sampling interval from the Subscription
-					item.setSamplingInterval(subscription
-							.getPublishingInterval());
-				} else {
-					item.setSamplingInterval(itemReq.getRequestedParameters()
-							.getSamplingInterval());
+		if (subscription == null) {
+			return null;
+		}
+
+		final UnsignedInteger[] itemIds = req.getMonitoredItemIds();
+		if (itemIds == null) {
+			return new StatusCode[0];
+		}
+
+		synchronized (subscription) {
+			if (!isActive(subscription)) {
+				return null;
+			}
+
+			final StatusCode[] results = new StatusCode[itemIds.length];
+			for (int i = 0; i < itemIds.length; i++) {
+				final MonitoredItem item = subscription
+						.removeMonitoredItem(itemIds[i].intValue());
+				if (item == null) {
+					results[i] = new StatusCode(
+							StatusCodes.Bad_MonitoredItemIdInvalid);
+					continue;
 				}
 
-				item.setQueueSize(itemReq.getRequestedParameters()
-						.getQueueSize());
-				item.setDiscardOldest(itemReq.getRequestedParameters()
-						.getDiscardOldest());
+				stopMonitoring(item);
+				// drops queued values, the item may still be in the queue of
+				// changed items of the subscription
+				item.setMode(MonitoringMode.Disabled);
+				item.unlinkTriggers();
+				results[i] = StatusCode.GOOD;
+			}
+			return results;
+		}
+	}
 
-				createdItems.add(item);
-				subscription.addMonitoredItem(item);
+	/**
+	 * adds and removes triggering links of a MonitoredItem: items linked to
+	 * it and in sampling mode are reported whenever the triggering item
+	 * queues a value. links are removed first, then added; the results are
+	 * set in the response.
+	 *
+	 * @param req
+	 * @param resp
+	 * @param sessionId
+	 *            the session sending the request
+	 * @throws ServiceResultException
+	 *             Bad_SubscriptionIdInvalid or Bad_MonitoredItemIdInvalid if
+	 *             the subscription or the triggering item does not exist, or
+	 *             Bad_SubscriptionIdInvalid if the subscription belongs to
+	 *             another session
+	 */
+	public void setTriggering(SetTriggeringRequest req,
+			SetTriggeringResponse resp, NodeId sessionId)
+			throws ServiceResultException {
+		final Subscription subscription = getSubscription(sessionId, req
+				.getSubscriptionId().intValue());
+		if (subscription == null) {
+			throw new ServiceResultException(
+					StatusCodes.Bad_SubscriptionIdInvalid);
+		}
+
+		synchronized (subscription) {
+			if (!isActive(subscription)) {
+				throw new ServiceResultException(
+						StatusCodes.Bad_SubscriptionIdInvalid);
 			}
+
+			final MonitoredItem triggeringItem = subscription
+					.getMonitoredItem(req.getTriggeringItemId().intValue());
+			if (triggeringItem == null) {
+				throw new ServiceResultException(
+						StatusCodes.Bad_MonitoredItemIdInvalid);
+			}
+
+			final UnsignedInteger[] linksToRemove = req.getLinksToRemove();
+			if (linksToRemove != null) {
+				final StatusCode[] removeResults = new StatusCode[linksToRemove.length];
+				for (int i = 0; i < linksToRemove.length; i++) {
+					final MonitoredItem item = subscription
+							.getMonitoredItem(linksToRemove[i].intValue());
+					if (item != null && triggeringItem.removeTriggeredItem(item)) {
+						removeResults[i] = StatusCode.GOOD;
+					} else {
+						removeResults[i] = new StatusCode(
+								StatusCodes.Bad_MonitoredItemIdInvalid);
+					}
+				}
+				resp.setRemoveResults(removeResults);
+			}
+
+			final UnsignedInteger[] linksToAdd = req.getLinksToAdd();
+			if (linksToAdd != null) {
+				final StatusCode[] addResults = new StatusCode[linksToAdd.length];
+				for (int i = 0; i < linksToAdd.length; i++) {
+					final MonitoredItem item = subscription
+							.getMonitoredItem(linksToAdd[i].intValue());
+					if (item == null) {
+						addResults[i] = new StatusCode(
+								StatusCodes.Bad_MonitoredItemIdInvalid);
+					} else {
+						triggeringItem.addTriggeredItem(item);
+						addResults[i] = StatusCode.GOOD;
+					}
+				}
+				resp.setAddResults(addResults);
+			}
+		}
+	}
+
+	/**
+	 * sets the requested parameters revised to what we support
+	 */
+	private void setParameters(Subscription subscription, MonitoredItem item,
+			MonitoringParameters params, DataChangeFilter filter) {
+		item.setFilter(filter);
+		item.setClientHandle(params.getClientHandle());
+		item.setSamplingInterval(SamplingEngine.reviseSamplingInterval(
+				params.getSamplingInterval(),
+				subscription.getPublishingInterval()));
+		item.setQueueSize(NotificationQueue.reviseQueueSize(params
+				.getQueueSize()));
+		item.setDiscardOldest(params.getDiscardOldest());
+	}
+
+	/**
+	 * decodes and validates the filter of MonitoringParameters. only data
+	 * change filters are supported.
+	 *
+	 * @param encodedFilter
+	 * @return the filter or null if no filter is used
+	 * @throws ServiceResultException
+	 *             with the status code for the client if the filter is
+	 *             invalid or not supported
+	 */
+	private DataChangeFilter decodeFilter(ExtensionObject encodedFilter)
+			throws ServiceResultException {
+		// clients not using a filter send an empty ExtensionObject
+		if (encodedFilter == null || encodedFilter.getTypeId() == null
+				|| encodedFilter.getTypeId().isNullNodeId()) {
+			return null;
 		}
 
-		return createdItems;
+		final Object decodedFilter;
+		try {
+			decodedFilter = encodedFilter.decode();
+		} catch (final DecodingException e) {
+			LOG.debug("could not decode filter: " + e.getMessage());
+			throw new ServiceResultException(
+					StatusCodes.Bad_MonitoredItemFilterInvalid);
+		}
+
+		if (decodedFilter == null) {
+			return null;
+		}
+		if (!(decodedFilter instanceof DataChangeFilter)) {
+			throw new ServiceResultException(
+					StatusCodes.Bad_MonitoredItemFilterUnsupported);
+		}
+
+		final DataChangeFilter filter = (DataChangeFilter) decodedFilter;
+		final StatusCode filterStatus = DataChangeDetector.validate(filter);
+		if (filterStatus != null) {
+			throw new ServiceResultException(filterStatus);
+		}
+		return filter;
+	}
+
+	/**
+	 * starts sampling (or pushing) values of the item
+	 */
+	private void startMonitoring(MonitoredItem item) {
+		itemIndex.add(item);
+		samplingEngine.register(item);
+	}
+
+	/**
+	 * stops sampling (or pushing) values of the item
+	 */
+	private void stopMonitoring(MonitoredItem item) {
+		itemIndex.remove(item);
+		samplingEngine.unregister(item);
+	}
+
+	/**
+	 * stops publishing and sampling for all subscriptions and releases the
+	 * threads. has to be called when the server is stopped.
+	 */
+	public void shutdown() {
+		for (final int id : subscriptions.keys()) {
+			final Subscription subscription = subscriptions.remove(id);
+			if (subscription != null) {
+				removeSubscription(subscription);
+			}
+		}
+		samplingEngine.shutdown();
+		itemIndex.clear();
+		publishingScheduler.shutdown();
 	}
 }
@@ -0,0 +1,264 @@
+package de.tum.in.opcua.server.core.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * map with primitive int keys. uses open addressing with linear probing, so
+ * keys are not boxed and get does not allocate.
+ *
+ * null values are not supported. reads do not lock. every slot holds an
+ * immutable entry and is written atomically, so a reader sees either the old
+ * or the new entry of a slot. writers are synchronized and change the table in
+ * place; removed entries leave a marker behind instead of moving the
+ * following entries, so a reader never misses an entry which is still in the
+ * map. the table is only replaced when it grows or has too many markers.
+ *
+ * @param <V>
+ */
+public class IntObjectMap<V> {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * marks the slot of a removed entry, lookups have to probe past it
+	 */
+	private static final Entry REMOVED = new Entry(0, null);
+
+	/**
+	 * replaced when the table grows or is cleaned up
+	 */
+	private volatile AtomicReferenceArray<Entry> table;
+
+	/**
+	 * number of entries, written under the lock
+	 */
+	private volatile int size;
+
+	/**
+	 * number of slots which are not free (entries and markers), guarded by
+	 * the lock
+	 */
+	private int used;
+
+	public IntObjectMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            number of entries the map should hold without growing
+	 */
+	public IntObjectMap(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		table = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		final AtomicReferenceArray<Entry> t = table;
+		final int mask = t.length() - 1;
+		for (int i = index(key, mask);; i = (i + 1) & mask) {
+			final Entry entry = t.get(i);
+			if (entry == null) {
+				return null;
+			}
+			if (entry != REMOVED && entry.key == key) {
+				return (V) entry.value;
+			}
+		}
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 *            must not be null
+	 * @return the previous value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V put(int key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null values are not supported");
+		}
+
+		final AtomicReferenceArray<Entry> t = table;
+		final int mask = t.length() - 1;
+		int free = -1;
+		int i = index(key, mask);
+		for (Entry entry; (entry = t.get(i)) != null; i = (i + 1) & mask) {
+			if (entry == REMOVED) {
+				if (free < 0) {
+					free = i;
+				}
+			} else if (entry.key == key) {
+				t.set(i, new Entry(key, value));
+				return (V) entry.value;
+			}
+		}
+
+		if (free >= 0) {
+			// reuse the marker, the number of used slots stays the same
+			t.set(free, new Entry(key, value));
+		} else {
+			t.set(i, new Entry(key, value));
+			used++;
+		}
+		size++;
+		if (used > t.length() / 2) {
+			rehash();
+		}
+		return null;
+	}
+
+	/**
+	 * puts the value only if there is no value for the key yet
+	 *
+	 * @return the existing value or null if the value was put
+	 */
+	public synchronized V putIfAbsent(int key, V value) {
+		final V existing = get(key);
+		if (existing != null) {
+			return existing;
+		}
+		put(key, value);
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return the removed value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(int key) {
+		final AtomicReferenceArray<Entry> t = table;
+		final int mask = t.length() - 1;
+		for (int i = index(key, mask);; i = (i + 1) & mask) {
+			final Entry entry = t.get(i);
+			if (entry == null) {
+				return null;
+			}
+			if (entry != REMOVED && entry.key == key) {
+				t.set(i, REMOVED);
+				size--;
+				return (V) entry.value;
+			}
+		}
+	}
+
+	/**
+	 * removes the entry only if it is mapped to the given value
+	 *
+	 * @return true if the entry was removed
+	 */
+	public synchronized boolean remove(int key, V value) {
+		if (value != null && value.equals(get(key))) {
+			remove(key);
+			return true;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized void clear() {
+		table = new AtomicReferenceArray<Entry>(table.length());
+		size = 0;
+		used = 0;
+	}
+
+	/**
+	 * @return a copy of the values, may be iterated while the map is changed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		final AtomicReferenceArray<Entry> t = table;
+		final List<V> result = new ArrayList<V>(size);
+		for (int i = 0; i < t.length(); i++) {
+			final Entry entry = t.get(i);
+			if (entry != null && entry != REMOVED) {
+				result.add((V) entry.value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return a copy of the keys
+	 */
+	public int[] keys() {
+		final AtomicReferenceArray<Entry> t = table;
+		int[] result = new int[size];
+		int j = 0;
+		for (int i = 0; i < t.length(); i++) {
+			final Entry entry = t.get(i);
+			if (entry != null && entry != REMOVED) {
+				if (j == result.length) {
+					// entries were added while we copied
+					result = Arrays.copyOf(result, Math.max(4, j * 2));
+				}
+				result[j++] = entry.key;
+			}
+		}
+		return j == result.length ? result : Arrays.copyOf(result, j);
+	}
+
+	/**
+	 * moves the entries into a new table without markers, twice as large if
+	 * the entries alone fill more than a quarter of the current one
+	 */
+	private void rehash() {
+		final AtomicReferenceArray<Entry> old = table;
+		final int capacity = size > old.length() / 4 ? old.length() << 1
+				: old.length();
+		final AtomicReferenceArray<Entry> t = new AtomicReferenceArray<Entry>(
+				capacity);
+
+		final int mask = capacity - 1;
+		for (int j = 0; j < old.length(); j++) {
+			final Entry entry = old.get(j);
+			if (entry != null && entry != REMOVED) {
+				int i = index(entry.key, mask);
+				while (t.get(i) != null) {
+					i = (i + 1) & mask;
+				}
+				t.set(i, entry);
+			}
+		}
+		used = size;
+		table = t;
+	}
+
+	/**
+	 * ids are usually sequential, so the bits are mixed to spread them
+	 */
+	private static int index(int key, int mask) {
+		final int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static final class Entry {
+
+		private final int key;
+		private final Object value;
+
+		Entry(int key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
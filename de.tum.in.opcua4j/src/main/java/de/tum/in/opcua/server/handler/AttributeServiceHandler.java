@@ -1,17 +1,15 @@
 package de.tum.in.opcua.server.handler;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.DataValue;
-import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.StatusCode;
-import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.common.ServiceFaultException;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.AttributeServiceSetHandler;
 import org.opcfoundation.ua.core.HistoryReadRequest;
 import org.opcfoundation.ua.core.HistoryReadResponse;
@@ -19,7 +17,6 @@ import org.opcfoundation.ua.core.HistoryReadResult;
 import org.opcfoundation.ua.core.HistoryReadValueId;
 import org.opcfoundation.ua.core.HistoryUpdateRequest;
 import org.opcfoundation.ua.core.HistoryUpdateResponse;
-import org.opcfoundation.ua.core.Node;
 import org.opcfoundation.ua.core.ReadAtTimeDetails;
 import org.opcfoundation.ua.core.ReadEventDetails;
 import org.opcfoundation.ua.core.ReadProcessedDetails;
@@ -32,7 +29,6 @@ import org.opcfoundation.ua.core.WriteRequest;
 import org.opcfoundation.ua.core.WriteResponse;
 import org.opcfoundation.ua.transport.EndpointServiceRequest;
 
-import de.tum.in.opcua.server.core.UAServerException;
 import de.tum.in.opcua.server.core.addressspace.INodeManager;
 import de.tum.in.opcua.server.core.history.IHistoryManager;
 import de.tum.in.opcua.server.core.util.ArrayUtils;
@@ -54,6 +50,14 @@ public class AttributeServiceHandler extends ServiceHandlerBase implements
 		initRequestContext(serviceReq);
 		final HistoryReadRequest req = serviceReq.getRequest();
 		final HistoryReadResponse resp = new HistoryReadResponse();
+		try {
+			getActiveSession(req);
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+			sendResp(serviceReq, resp);
+			return;
+		}
 		LOG.info("---------------  got history read request: ");
 
 		final List<HistoryReadResult> resultList = new ArrayList<HistoryReadResult>();
@@ -147,79 +151,40 @@ public class AttributeServiceHandler extends ServiceHandlerBase implements
 		initRequestContext(serviceReq);
 		final ReadRequest req = serviceReq.getRequest();
 		final ReadResponse resp = new ReadResponse();
+		try {
+			getActiveSession(req);
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+			sendResp(serviceReq, resp);
+			return;
+		}
 
-		// contains all DataValues which are sent pack to the clients read
-		// request
-		final List<DataValue> dataValues = new ArrayList<DataValue>();
-
-		/*
-		 * a small temporary map for read nodes from the addressspace, because
-		 * we may want to read different attributes from one node and do not
-		 * want to fetch the node again from the addressspace
-		 */
-		final Map<NodeId, Node> readNodes = new HashMap<NodeId, Node>();
-
-		// read all nodes the client wants
-		for (final ReadValueId readId : req.getNodesToRead()) {
-			LOG.debug("client sent read request. nodeid: " + readId.getNodeId()
-					+ "; attrId:" + readId.getAttributeId());
-			// check temp map
-			Node nodeToRead = readNodes.get(readId.getNodeId());
-			if (nodeToRead == null) {
-				try {
-					nodeToRead = getAddressSpace().getNode(readId.getNodeId());
-				} catch (final UAServerException e) {
-					LOG.error(e.getMessage(), e);
-
-					// set a bad datavalue for this node and get on with the
-					// next one
-					dataValues.add(new DataValue(StatusCode.BAD));// buildDataValue(nodeToRead,
-																	// readId.getAttributeId()));
-					continue;
-				}
-				// read it from addressspace and store it in the map
-				readNodes.put(readId.getNodeId(), nodeToRead);
+		final ReadValueId[] nodesToRead = req.getNodesToRead() != null ? req
+				.getNodesToRead() : new ReadValueId[0];
+		if (LOG.isDebugEnabled()) {
+			for (final ReadValueId readId : nodesToRead) {
+				LOG.debug("client sent read request. nodeid: "
+						+ readId.getNodeId() + "; attrId:"
+						+ readId.getAttributeId());
 			}
+		}
 
-			if (nodeToRead == null) {
-				LOG.warn("did not find node with id " + readId.getNodeId());
+		// every node manager is asked once for all of its nodes
+		final DataValue[] dataValues = getAddressSpace().read(
+				Arrays.asList(nodesToRead));
+		for (final DataValue val : dataValues) {
+			if (val.getSourceTimestamp() == null) {
+				val.setSourceTimestamp(val.getServerTimestamp());
 			}
-
-			dataValues.add(buildDataValue(nodeToRead, readId.getAttributeId()));
 		}
 
 		// build response and send it to the client
 		resp.setResponseHeader(buildRespHeader(req));
-		resp.setResults(dataValues.toArray(new DataValue[dataValues.size()]));
+		resp.setResults(dataValues);
 		serviceReq.sendResponse(resp);
 	}
 
-	/**
-	 * builds a DataValue for the given {@link ReadValueId}. what the clients
-	 * wants to read is defined by {@link ReadValueId#getNodeId()} and
-	 * {@link ReadValueId#getAttributeId()}
-	 * 
-	 * @param readId
-	 * @return
-	 */
-	private DataValue buildDataValue(Node nodeToRead, UnsignedInteger attrId) {
-		final DataValue val = new DataValue();
-
-		if (nodeToRead != null) {
-			nodeToRead.readAttributeValue(attrId, val);
-
-			val.setStatusCode(StatusCode.GOOD);
-			val.setServerTimestamp(new DateTime());
-			val.setSourceTimestamp(new DateTime());
-		} else {
-			val.setStatusCode(StatusCode.BAD);
-		}
-
-		// LOG.debug("read value " + val.getValue().getValue());
-
-		return val;
-	}
-
 	@Override
 	public void onWrite(
 			EndpointServiceRequest<WriteRequest, WriteResponse> serviceReq)
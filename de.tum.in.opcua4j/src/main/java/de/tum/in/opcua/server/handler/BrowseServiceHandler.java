@@ -7,6 +7,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.StatusCode;
 import org.opcfoundation.ua.common.ServiceFaultException;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.AddNodesRequest;
 import org.opcfoundation.ua.core.AddNodesResponse;
 import org.opcfoundation.ua.core.AddReferencesRequest;
@@ -40,6 +41,7 @@ import org.opcfoundation.ua.core.UnregisterNodesResponse;
 import org.opcfoundation.ua.transport.EndpointServiceRequest;
 
 import de.tum.in.opcua.server.core.Session;
+import de.tum.in.opcua.server.core.UAServerException;
 import de.tum.in.opcua.server.handler.referencefilter.IReferenceFilter;
 import de.tum.in.opcua.server.handler.referencefilter.RefDirectionFilter;
 import de.tum.in.opcua.server.handler.referencefilter.RefTypeFilter;
@@ -114,6 +116,14 @@ public class BrowseServiceHandler extends ServiceHandlerBase implements
 		initRequestContext(serviceReq);
 		final BrowseRequest req = serviceReq.getRequest();
 		final BrowseResponse resp = new BrowseResponse();
+		try {
+			getActiveSession(req);
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+			sendResp(serviceReq, resp);
+			return;
+		}
 
 		resp.setResponseHeader(buildRespHeader(req));
 
@@ -155,8 +165,19 @@ public class BrowseServiceHandler extends ServiceHandlerBase implements
 	 */
 	private BrowseResult browse(BrowseDescription browseDesc) {
 		// fetch all references.
-		final List<ReferenceDescription> allReferences = server.getAddrSpace()
-				.browseNode(browseDesc.getNodeId());
+		final List<ReferenceDescription> allReferences;
+		try {
+			allReferences = server.getAddrSpace().browseNode(
+					browseDesc.getNodeId());
+		} catch (final UAServerException e) {
+			// not all node managers answered, we do not pretend the
+			// references we got are complete
+			LOG.warn(e.getMessage());
+			final BrowseResult result = new BrowseResult();
+			result.setStatusCode(new StatusCode(e.getStatusCode()));
+			result.setReferences(new ReferenceDescription[0]);
+			return result;
+		}
 
 		/*
 		 * there are several filters which are be applied on the fetched
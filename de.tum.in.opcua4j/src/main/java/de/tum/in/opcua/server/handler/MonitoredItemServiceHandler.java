@@ -1,11 +1,9 @@
 package de.tum.in.opcua.server.handler;
 
-import java.util.List;
-
 import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.StatusCode;
-import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.common.ServiceFaultException;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.CreateMonitoredItemsRequest;
 import org.opcfoundation.ua.core.CreateMonitoredItemsResponse;
 import org.opcfoundation.ua.core.DeleteMonitoredItemsRequest;
@@ -13,6 +11,7 @@ import org.opcfoundation.ua.core.DeleteMonitoredItemsResponse;
 import org.opcfoundation.ua.core.ModifyMonitoredItemsRequest;
 import org.opcfoundation.ua.core.ModifyMonitoredItemsResponse;
 import org.opcfoundation.ua.core.MonitoredItemCreateResult;
+import org.opcfoundation.ua.core.MonitoredItemModifyResult;
 import org.opcfoundation.ua.core.MonitoredItemServiceSetHandler;
 import org.opcfoundation.ua.core.SetMonitoringModeRequest;
 import org.opcfoundation.ua.core.SetMonitoringModeResponse;
@@ -21,8 +20,6 @@ import org.opcfoundation.ua.core.SetTriggeringResponse;
 import org.opcfoundation.ua.core.StatusCodes;
 import org.opcfoundation.ua.transport.EndpointServiceRequest;
 
-import de.tum.in.opcua.server.core.subscription.MonitoredItem;
-
 public class MonitoredItemServiceHandler extends ServiceHandlerBase implements
 		MonitoredItemServiceSetHandler {
 
@@ -40,23 +37,23 @@ public class MonitoredItemServiceHandler extends ServiceHandlerBase implements
 		final CreateMonitoredItemsRequest req = serviceReq.getRequest();
 		final CreateMonitoredItemsResponse resp = new CreateMonitoredItemsResponse();
 
-		final List<MonitoredItem> items = getSubscriptionManager()
-				.createMonitoredItems(req);
-
 		LOG.info("request: " + req.toString());
 
-		final MonitoredItemCreateResult[] results = new MonitoredItemCreateResult[items
-				.size()];
-		int i = 0;
-		for (final MonitoredItem item : items) {
-			final MonitoredItemCreateResult result = new MonitoredItemCreateResult(
-					StatusCode.GOOD, new UnsignedInteger(item.getId()),
-					item.getSamplingInterval(), item.getQueueSize(), null);
-			results[i++] = result;
+		try {
+			final MonitoredItemCreateResult[] results = getSubscriptionManager()
+					.createMonitoredItems(req, getSessionId(req));
+
+			if (results == null) {
+				resp.setResponseHeader(buildErrRespHeader(req,
+						StatusCodes.Bad_SubscriptionIdInvalid));
+			} else {
+				resp.setResults(results);
+				resp.setResponseHeader(buildRespHeader(req));
+			}
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
 		}
-		resp.setResults(results);
-
-		resp.setResponseHeader(buildRespHeader(req));
 		sendResp(serviceReq, resp);
 	}
 
@@ -73,8 +70,21 @@ public class MonitoredItemServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		resp.setResponseHeader(buildErrRespHeader(req,
-				StatusCodes.Bad_ServiceUnsupported));
+		try {
+			final MonitoredItemModifyResult[] results = getSubscriptionManager()
+					.modifyMonitoredItems(req, getSessionId(req));
+
+			if (results == null) {
+				resp.setResponseHeader(buildErrRespHeader(req,
+						StatusCodes.Bad_SubscriptionIdInvalid));
+			} else {
+				resp.setResults(results);
+				resp.setResponseHeader(buildRespHeader(req));
+			}
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -90,8 +100,21 @@ public class MonitoredItemServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		resp.setResponseHeader(buildErrRespHeader(req,
-				StatusCodes.Bad_ServiceUnsupported));
+		try {
+			final StatusCode[] results = getSubscriptionManager()
+					.setMonitoringMode(req, getSessionId(req));
+
+			if (results == null) {
+				resp.setResponseHeader(buildErrRespHeader(req,
+						StatusCodes.Bad_SubscriptionIdInvalid));
+			} else {
+				resp.setResults(results);
+				resp.setResponseHeader(buildRespHeader(req));
+			}
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -107,8 +130,14 @@ public class MonitoredItemServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		resp.setResponseHeader(buildErrRespHeader(req,
-				StatusCodes.Bad_ServiceUnsupported));
+		try {
+			getSubscriptionManager().setTriggering(req, resp,
+					getSessionId(req));
+			resp.setResponseHeader(buildRespHeader(req));
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -124,8 +153,21 @@ public class MonitoredItemServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		resp.setResponseHeader(buildErrRespHeader(req,
-				StatusCodes.Bad_ServiceUnsupported));
+		try {
+			final StatusCode[] results = getSubscriptionManager()
+					.deleteMonitoredItems(req, getSessionId(req));
+
+			if (results == null) {
+				resp.setResponseHeader(buildErrRespHeader(req,
+						StatusCodes.Bad_SubscriptionIdInvalid));
+			} else {
+				resp.setResults(results);
+				resp.setResponseHeader(buildRespHeader(req));
+			}
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -9,13 +9,15 @@ import org.opcfoundation.ua.builtintypes.ServiceRequest;
 import org.opcfoundation.ua.builtintypes.ServiceResponse;
 import org.opcfoundation.ua.builtintypes.StatusCode;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.RequestHeader;
 import org.opcfoundation.ua.core.ResponseHeader;
+import org.opcfoundation.ua.core.StatusCodes;
 import org.opcfoundation.ua.transport.EndpointServiceRequest;
 
+import de.tum.in.opcua.server.core.ISessionManager;
 import de.tum.in.opcua.server.core.RequestContext;
 import de.tum.in.opcua.server.core.Session;
-import de.tum.in.opcua.server.core.SessionManager;
 import de.tum.in.opcua.server.core.UAServer;
 import de.tum.in.opcua.server.core.addressspace.AddressSpace;
 import de.tum.in.opcua.server.core.subscription.SubscriptionManager;
@@ -115,12 +117,51 @@ public class ServiceHandlerBase {
 				req.getRequestHeader().getAuthenticationToken());
 	}
 
+	/**
+	 * returns the {@link Session} associated with the client, which has to be
+	 * activated. all services but ActivateSession and CloseSession require
+	 * an activated session.
+	 * 
+	 * @param req
+	 * @return
+	 * @throws ServiceResultException
+	 *             with Bad_SessionIdInvalid if the session does not exist,
+	 *             e.g. because it timed out or the token is stale, or with
+	 *             Bad_SessionNotActivated if the client did not activate it
+	 *             (yet), e.g. a session continued from another server
+	 *             instance
+	 */
+	protected Session getActiveSession(ServiceRequest req)
+			throws ServiceResultException {
+		final Session session = getSession(req);
+		if (session == null) {
+			throw new ServiceResultException(StatusCodes.Bad_SessionIdInvalid);
+		}
+		if (!session.isActive()) {
+			throw new ServiceResultException(
+					StatusCodes.Bad_SessionNotActivated);
+		}
+		return session;
+	}
+
+	/**
+	 * @param req
+	 * @return the id of the activated {@link Session} associated with the
+	 *         client
+	 * @throws ServiceResultException
+	 *             see {@link #getActiveSession(ServiceRequest)}
+	 */
+	protected NodeId getSessionId(ServiceRequest req)
+			throws ServiceResultException {
+		return getActiveSession(req).getSessionID();
+	}
+
 	public void init(UAServer server) { // TODO may change this here
 
 		this.server = server;
 	}
 
-	protected SessionManager getSessionManager() {
+	protected ISessionManager getSessionManager() {
 		return server.getSessionManager();
 	}
 
@@ -42,8 +42,8 @@ import org.opcfoundation.ua.utils.CryptoUtil;
 
 import de.tum.in.opcua.server.core.ClientIdentity;
 import de.tum.in.opcua.server.core.ClientInfo;
+import de.tum.in.opcua.server.core.ISessionManager;
 import de.tum.in.opcua.server.core.Session;
-import de.tum.in.opcua.server.core.SessionManager;
 import de.tum.in.opcua.server.core.UAServerException;
 import de.tum.in.opcua.server.core.util.ArrayUtils;
 
@@ -177,6 +177,10 @@ public class SessionServiceHandler extends ServiceHandlerBase implements
 		}
 
 		session.setActive(true);
+		if (session.getClientInfo() == null) {
+			// a session continued from another server instance
+			session.setClientInfo(new ClientInfo());
+		}
 		session.getClientInfo().setClientIdentity(clientIdentity);
 
 		// build response header
@@ -234,13 +238,11 @@ public class SessionServiceHandler extends ServiceHandlerBase implements
 				.getAuthenticationToken();
 		LOG.debug("client closes session with authToken: " + authToken);
 
-		/*
-		 * if (req.getDeleteSubscriptions()) { // delete subscriptions } else {
-		 * // do not delete them, but keep reference to them }
-		 */
-
-		// deleting the
-		server.getSessionManager().closeSession(authToken);
+		// subscriptions which are not deleted are kept until their lifetime
+		// expires
+		final boolean deleteSubscriptions = req.getDeleteSubscriptions() == null
+				|| req.getDeleteSubscriptions();
+		server.getSessionManager().closeSession(authToken, deleteSubscriptions);
 
 		final CloseSessionResponse resp = new CloseSessionResponse(
 				buildRespHeader(req));
@@ -282,7 +284,7 @@ public class SessionServiceHandler extends ServiceHandlerBase implements
 		LOG.info("security mode "
 				+ serviceReq.getChannel().getMessageSecurityMode());
 
-		final SessionManager sessionMgr = getSessionManager();
+		final ISessionManager sessionMgr = getSessionManager();
 
 		final Session session = sessionMgr.createSession();
 		final ClientInfo clientInfo = new ClientInfo();
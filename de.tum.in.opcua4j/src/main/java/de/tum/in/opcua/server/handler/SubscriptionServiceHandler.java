@@ -3,6 +3,7 @@ package de.tum.in.opcua.server.handler;
 import org.apache.log4j.Logger;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.common.ServiceFaultException;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.CreateSubscriptionRequest;
 import org.opcfoundation.ua.core.CreateSubscriptionResponse;
 import org.opcfoundation.ua.core.DeleteSubscriptionsRequest;
@@ -41,19 +42,23 @@ public class SubscriptionServiceHandler extends ServiceHandlerBase implements
 		final CreateSubscriptionResponse resp = new CreateSubscriptionResponse();
 
 		LOG.info("request: " + req.toString());
-		resp.setResponseHeader(buildRespHeader(req));
 
-		final Subscription subscription = getSubscriptionManager()
-				.createSubscription(req, getSession(req).getSessionID());
-
-		resp.setSubscriptionId(new UnsignedInteger(subscription.getId()));
-		resp.setRevisedLifetimeCount(new UnsignedInteger(subscription
-				.getLifetimeCount()));
-		resp.setRevisedMaxKeepAliveCount(new UnsignedInteger(subscription
-				.getMaxKeepAliveCount()));
-		resp.setRevisedPublishingInterval(subscription.getPublishingInterval());
-
-		resp.setResponseHeader(buildRespHeader(req));
+		try {
+			final Subscription subscription = getSubscriptionManager()
+					.createSubscription(req, getSessionId(req));
+
+			resp.setSubscriptionId(new UnsignedInteger(subscription.getId()));
+			resp.setRevisedLifetimeCount(new UnsignedInteger(subscription
+					.getLifetimeCount()));
+			resp.setRevisedMaxKeepAliveCount(new UnsignedInteger(subscription
+					.getMaxKeepAliveCount()));
+			resp.setRevisedPublishingInterval(subscription.getPublishingInterval());
+
+			resp.setResponseHeader(buildRespHeader(req));
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -70,16 +75,26 @@ public class SubscriptionServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		final Subscription subscription = getSubscriptionManager()
-				.modifySubscription(req);
-
-		resp.setRevisedLifetimeCount(new UnsignedInteger(subscription
-				.getLifetimeCount()));
-		resp.setRevisedMaxKeepAliveCount(new UnsignedInteger(subscription
-				.getMaxKeepAliveCount()));
-		resp.setRevisedPublishingInterval(subscription.getPublishingInterval());
-
-		resp.setResponseHeader(buildRespHeader(req));
+		try {
+			final Subscription subscription = getSubscriptionManager()
+					.modifySubscription(req, getSessionId(req));
+
+			if (subscription == null) {
+				resp.setResponseHeader(buildErrRespHeader(req,
+						StatusCodes.Bad_SubscriptionIdInvalid));
+			} else {
+				resp.setRevisedLifetimeCount(new UnsignedInteger(subscription
+						.getLifetimeCount()));
+				resp.setRevisedMaxKeepAliveCount(new UnsignedInteger(subscription
+						.getMaxKeepAliveCount()));
+				resp.setRevisedPublishingInterval(subscription
+						.getPublishingInterval());
+				resp.setResponseHeader(buildRespHeader(req));
+			}
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -96,9 +111,14 @@ public class SubscriptionServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		getSubscriptionManager().setPublishingMode(req);
-
-		resp.setResponseHeader(buildRespHeader(req));
+		try {
+			resp.setResults(getSubscriptionManager().setPublishingMode(req,
+					getSessionId(req)));
+			resp.setResponseHeader(buildRespHeader(req));
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -112,7 +132,14 @@ public class SubscriptionServiceHandler extends ServiceHandlerBase implements
 
 		initRequestContext(serviceReq);
 
-		getSubscriptionManager().onPublish(serviceReq);
+		try {
+			getSubscriptionManager().onPublish(serviceReq);
+		} catch (final ServiceResultException e) {
+			final PublishResponse resp = new PublishResponse();
+			resp.setResponseHeader(buildErrRespHeader(serviceReq.getRequest(),
+					e.getStatusCode().getValue()));
+			sendResp(serviceReq, resp);
+		}
 
 		// resp.setResponseHeader(buildErrRespHeader(req,
 		// StatusCodes.Bad_ServiceUnsupported));
@@ -132,8 +159,14 @@ public class SubscriptionServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		resp.setResponseHeader(buildErrRespHeader(req,
-				StatusCodes.Bad_ServiceUnsupported));
+		try {
+			resp.setNotificationMessage(getSubscriptionManager().republish(
+					req, getSessionId(req)));
+			resp.setResponseHeader(buildRespHeader(req));
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 
@@ -168,9 +201,14 @@ public class SubscriptionServiceHandler extends ServiceHandlerBase implements
 
 		LOG.info("request: " + req.toString());
 
-		getSubscriptionManager().deleteSubscription(req);
-
-		resp.setResponseHeader(buildRespHeader(req));
+		try {
+			resp.setResults(getSubscriptionManager().deleteSubscription(req,
+					getSessionId(req)));
+			resp.setResponseHeader(buildRespHeader(req));
+		} catch (final ServiceResultException e) {
+			resp.setResponseHeader(buildErrRespHeader(req, e.getStatusCode()
+					.getValue()));
+		}
 		sendResp(serviceReq, resp);
 	}
 